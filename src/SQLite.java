@@ -28,13 +28,21 @@ package org.bennedum.SQLite;
 
 import android.content.Context;
 import android.content.ContentValues;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteCursor;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.database.SQLException;
 import android.os.AsyncTask;
+import android.os.CancellationSignal;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.widget.Toast;
 
 import com.google.appinventor.components.annotations.*;
@@ -44,8 +52,43 @@ import com.google.appinventor.components.common.PropertyTypeConstants;
 import com.google.appinventor.components.runtime.util.AsynchUtil;
 import com.google.appinventor.components.runtime.util.YailList;
 
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -53,8 +96,12 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 
 
 @DesignerComponent(
@@ -68,38 +115,292 @@ import java.io.IOException;
 
 
 @SimpleObject(external = true)
-public class SQLite extends AndroidNonvisibleComponent implements Component {
+public class SQLite extends AndroidNonvisibleComponent implements Component, OnPauseListener {
 
     public static final int VERSION = 1;
     
     private static final String NAME = "SQLite";
     
+    // Size of the chunks used when streaming blobs, kept well below the 2MB cursor window, and the table holding them
+    private static final int BLOB_CHUNK_SIZE = 1024 * 1024;
+    private static final String BLOB_CHUNKS_TABLE = "__blob_chunks";
+    
+    // Size of the buffer used when writing query results to a file, and the rows written between SelectToFileAsync progress events
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+    private static final int SELECT_TO_FILE_PROGRESS_ROWS = 1000;
+    
+    // Lines InsertFile gives each parser at a time, and the most parser threads it starts
+    private static final int INSERT_FILE_CHUNK_LINES = 1000;
+    private static final int INSERT_FILE_MAX_PARSERS = 4;
+    
+    // Size of the chunks used when copying whole files, between progress events
+    private static final int COPY_CHUNK_SIZE = 8 * 1024 * 1024;
+    
+    // Size of the buffers used when copying, compressing or decompressing streams
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    
+    // How many times an online backup restarts because of changes before it finishes in one step, and how many times
+    // in a row its checkpoint may be blocked by a reader before it gives up
+    private static final int MAX_BACKUP_RESTARTS = 3;
+    private static final int MAX_BACKUP_BUSY_CHECKPOINTS = 20;
+    
+    // Size of the prepared statement cache Android gives each connection, and the largest it allows
+    private static final int DEFAULT_SQL_CACHE_SIZE = 25;
+    private static final int MAX_SQL_CACHE_SIZE = 100;
+    
+    // Milliseconds a schema cache lookup trusts the cache before checking the schema version again
+    private static final long SCHEMA_CHECK_INTERVAL = 1000;
+    
+    // Matches SQL statements that change the schema
+    private static final Pattern DDL_PATTERN = Pattern.compile("\\s*(CREATE|DROP|ALTER)\\b", Pattern.CASE_INSENSITIVE);
+    
+    // Matches a ROLLBACK statement that ends the transaction, not one that rolls back to a savepoint
+    private static final Pattern ROLLBACK_PATTERN = Pattern.compile("\\s*ROLLBACK(\\s+TRANSACTION)?\\s*;?\\s*", Pattern.CASE_INSENSITIVE);
+    
+    // Table holding the counts maintained by EnableRowCounter
+    private static final String ROW_COUNTS_TABLE = "__row_counts";
+    
+    // Table listing the indexes created by CreateSearchIndex, and the number of tokens in each search result snippet
+    private static final String SEARCH_INDEXES_TABLE = "__search_indexes";
+    private static final int SEARCH_SNIPPET_TOKENS = 16;
+    
+    // Table listing the indexes created by CreateSpatialIndex, and the fraction of maxDistance SelectNearest searches first
+    private static final String SPATIAL_INDEXES_TABLE = "__spatial_indexes";
+    private static final double NEAREST_FIRST_FRACTION = 1.0 / 1024;
+    
+    // Table listing the time series created by CreateTimeSeries
+    private static final String TIME_SERIES_TABLE = "__time_series";
+    
+    // Table listing the summary tables created by CreateSummary
+    private static final String SUMMARIES_TABLE = "__summaries";
+    
+    // Different statements recorded for the index advisor
+    private static final int MAX_QUERY_SHAPES = 200;
+    
+    // Literal values replaced with ? in the statements recorded for the index advisor
+    private static final Pattern STRING_LITERAL_PATTERN = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL_PATTERN = Pattern.compile("(?<![\\w.\"$])-?\\d+(?:\\.\\d+)?(?:[eE][-+]?\\d+)?(?![\\w.])");
+    
+    // Matches query plan steps that read a whole table, and the comparisons in a WHERE clause an index can help
+    private static final Pattern SCAN_PATTERN = Pattern.compile("SCAN (?:TABLE )?(\\S+)(?: AS (\\S+))?");
+    private static final Pattern COMPARISON_PATTERN = Pattern.compile(
+        "(?:(\"(?:[^\"]|\"\")+\"|\\w+)\\.)?(\"(?:[^\"]|\"\")+\"|\\w+)\\s*(==?|<=|>=|<(?!>)|>|\\bIS\\b|(?:\\bNOT\\s+)?\\bIN\\b|\\bBETWEEN\\b)",
+        Pattern.CASE_INSENSITIVE);
+    
+    // Matches a CREATE INDEX statement
+    private static final Pattern CREATE_INDEX_PATTERN = Pattern.compile(
+        "\\s*CREATE\\s+(?:UNIQUE\\s+)?INDEX\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?(?:\"(?:[^\"]|\"\")+\"|[\\w.$]+)\\s+ON\\s+(\"(?:[^\"]|\"\")+\"|[\\w$]+)",
+        Pattern.CASE_INSENSITIVE);
+    
+    // Bytes of a read only attached database that are memory mapped
+    private static final long ATTACHED_MMAP_SIZE = 256L * 1024 * 1024;
+    
+    // Matches the start of a CREATE statement from sqlite_master up to the name of the object, and virtual tables
+    private static final Pattern CREATE_OBJECT_PATTERN = Pattern.compile(
+        "\\s*CREATE\\s+(?:UNIQUE\\s+|VIRTUAL\\s+)?(?:TABLE|INDEX|TRIGGER|VIEW)\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?", Pattern.CASE_INSENSITIVE);
+    private static final Pattern VIRTUAL_TABLE_PATTERN = Pattern.compile("\\s*CREATE\\s+VIRTUAL\\s", Pattern.CASE_INSENSITIVE);
+    
+    // Matches the suffixes of the shadow tables FTS and R*Tree virtual tables keep their data in
+    private static final Pattern SHADOW_TABLE_PATTERN = Pattern.compile("_(content|data|idx|docsize|config|segments|segdir|stat|node|rowid|parent)");
+    
+    // Synced writes timed by the auto profile benchmark, and the average above which syncing is considered slow
+    private static final int AUTO_BENCHMARK_SYNCS = 5;
+    private static final long AUTO_SLOW_SYNC_NANOS = 5000000;
+    
+    // Matches the statement type and target table of INSERT, REPLACE, UPDATE and DELETE statements
+    private static final Pattern WRITE_PATTERN = Pattern.compile(
+        "\\s*(INSERT|REPLACE|UPDATE|DELETE)\\s+(?:OR\\s+\\w+\\s+)?(?:INTO\\s+|FROM\\s+)?(\"(?:[^\"]|\"\")+\"|\\[[^\\]]+\\]|`[^`]+`|[\\w.$]+)",
+        Pattern.CASE_INSENSITIVE);
+    
+    // Milliseconds the database must be idle before scheduled maintenance runs
+    private static final long MAINTENANCE_IDLE_DELAY = 2000;
+    
+    // Rows written to a table before maintenance analyzes it
+    private static final long MAINTENANCE_MIN_WRITES = 1000;
+    
+    // Rows sampled from each index by ANALYZE during maintenance, to keep each step short
+    private static final int ANALYSIS_LIMIT = 1000;
+    
+    // Free pages released by each incremental vacuum step
+    private static final int VACUUM_STEP_PAGES = 256;
+    
+    // Table holding the rules added by AddPurgeRule, the rowids each purge step checks,
+    // and milliseconds a purge waits for foreground work before checking again
+    private static final String PURGE_RULES_TABLE = "__purge_rules";
+    private static final long PURGE_STEP_ROWS = 1000;
+    private static final long PURGE_WAIT_DELAY = 50;
+    
+    // Magic numbers at the start of incremental backup manifest and patch files
+    private static final int MANIFEST_MAGIC = 0x53514d46;
+    private static final int PATCH_MAGIC = 0x53515046;
+    
+    // Error for the backup methods, which read the database file, when the database is in memory
+    private static final String IN_MEMORY_BACKUP_ERROR = "An in-memory database can't be backed up from its file; use SnapshotDatabase first or ExportDatabase after closing it.";
+    
+    // Milliseconds an online backup or search index build waits for an open transaction to end before trying the next step
+    private static final long BACKUP_WAIT_DELAY = 50;
+    
     // Extension properties
     private boolean debugToast = false;
     private boolean debugDialog = false;
     private String dbName = "db.sqlite";
     private int dbVersion = 1;
+    private String prebuiltDatabase = "";
+    private String upgradeScripts = "";
+    private boolean inMemory = false;
+    private int snapshotInterval = 0;
     private boolean returnColumnNames = false;
+    private String performanceProfile = "default";
+    private volatile boolean indexAdvisor = false;
     
     private ComponentContainer container;
     private Context context;
     private boolean isRepl;
     
-    private DBHelper dbHelper = null;
+    private SharedDatabase shared = null;
     private SQLiteDatabase db = null;
+    private volatile DBAsyncTask openTask = null;
+    private volatile Schema schema = null;
+    private volatile Profile activeProfile = null;
+    
+    // Activity on the database thread, used to find idle time for maintenance
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+    private volatile long lastActivity = 0;
+    
+    // Rows written to each table since it was last analyzed, only used on the database thread
+    private final HashMap<String, Long> tableWrites = new HashMap<String, Long>();
+    
+    // Tables with change notifications, keyed by lower case name, and the changes waiting for the current transaction
+    // to commit, keyed by lower case table and operation; the pending changes are only used on the database thread
+    private final Map<String, String> observedTables = Collections.synchronizedMap(new HashMap<String, String>());
+    private final LinkedHashMap<String, Long> pendingChanges = new LinkedHashMap<String, Long>();
+    private boolean changesRolledBack = false;
+    
+    // Live queries keyed by tag
+    private final LinkedHashMap<String, LiveQuery> liveQueries = new LinkedHashMap<String, LiveQuery>();
+    
+    // Statements recorded for the index advisor with the number of times each was run, only used on the database thread,
+    // and the index builds in progress keyed by tag
+    private final LinkedHashMap<String, Integer> queryShapes = new LinkedHashMap<String, Integer>();
+    private final HashMap<String, IndexBuild> indexBuilds = new HashMap<String, IndexBuild>();
+    
+    // Write buffers keyed by table
+    private final HashMap<String, WriteBuffer> writeBuffers = new HashMap<String, WriteBuffer>();
+    
+    // Background maintenance
+    private int maintenanceInterval = 0;
+    private int maintenanceTimeBudget = 200;
+    private final AtomicBoolean maintenanceRunning = new AtomicBoolean();
+    private final AtomicBoolean purgeRunning = new AtomicBoolean();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable maintenanceTimer = new Runnable() {
+        @Override
+        public void run() {
+            if (db == null) return;
+            long idle = SystemClock.uptimeMillis() - lastActivity;
+            if ((idle < MAINTENANCE_IDLE_DELAY) || (pendingTasks.get() > 0)) {
+                handler.postDelayed(this, MAINTENANCE_IDLE_DELAY);
+                return;
+            }
+            RunMaintenance();
+            PurgeExpiredRows();
+        }
+    };
+    
+    // Timed snapshots of an in-memory database, and the change marker of the last snapshot, only used on the database thread
+    private String snapshotMarker = null;
+    private final Runnable snapshotTimer = new Runnable() {
+        @Override
+        public void run() {
+            if (db == null) return;
+            new DBAsyncTask().queue(new DBRunnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (db != null)
+                            snapshot();
+                    } catch (Exception e) {
+                        debugException(e);
+                    }
+                }
+            });
+            scheduleSnapshot();
+        }
+    };
+    
+    // Pre-warming performed after the database is opened
+    private boolean prewarm = false;
+    private final ArrayList<String> warmupQueries = new ArrayList<String>();
+    private final ArrayList<String> hotStatements = new ArrayList<String>();
 
+    // Open databases keyed by path, prefixed with "memory:" for in-memory copies, shared by every component in the app
+    private static final HashMap<String, SharedDatabase> sharedDatabases = new HashMap<String, SharedDatabase>();
+    
+    /**
+    * A database connection shared by every component that opens the same file, so they share one page cache and
+    * prepared statement cache. All components already share the database thread. The connection is closed when the
+    * last component using it closes the database.
+    */
+    private static class SharedDatabase {
+        public final String key;
+        public final SQLiteDatabase db;
+        public final Profile profile;
+        public final boolean inMemory;
+        public int references = 1;
+        
+        public SharedDatabase(String key, SQLiteDatabase db, Profile profile, boolean inMemory) {
+            this.key = key;
+            this.db = db;
+            this.profile = profile;
+            this.inMemory = inMemory;
+        }
+    }
+    
     /**
     * Helper class for handling database life cycle events.
     */
     private class DBHelper extends SQLiteOpenHelper {
     
         public DBHelper(Context context) {
-            super(context, dbName, null, dbVersion);
+            super(context, inMemory ? null : dbName, null, dbVersion);
+        }
+        
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            if (inMemory) {
+                // load before the version is checked, so upgrades run against the loaded data
+                SQLite.this.db = db;
+                loadSnapshot();
+                return;
+            }
+            Profile profile = activeProfile;
+            if (profile == null) return;
+            // page_size only takes effect on a new, empty database
+            Cursor cursor = db.rawQuery("PRAGMA page_count", null);
+            boolean empty = cursor.moveToNext() && (cursor.getLong(0) == 0);
+            cursor.close();
+            if (empty)
+                db.execSQL("PRAGMA page_size = " + profile.pageSize);
+            if (profile.journalMode.equals("WAL"))
+                db.enableWriteAheadLogging();
+            else
+                db.disableWriteAheadLogging();
         }
         
         @Override
         public void onOpen(SQLiteDatabase db) {
             debug("Database opened");
+            Profile profile = activeProfile;
+            if (profile != null) {
+                if (! profile.journalMode.equals("WAL")) {
+                    Cursor cursor = db.rawQuery("PRAGMA journal_mode = " + profile.journalMode, null);
+                    cursor.moveToNext();
+                    cursor.close();
+                }
+                applyProfile(db, profile);
+            }
+            // so rows deleted by REPLACE conflicts fire the delete triggers that keep counters, summaries and indexes up to date
+            db.execSQL("PRAGMA recursive_triggers = ON");
             SQLite.this.db = db;
             form.runOnUiThread(new Runnable() {
                 @Override
@@ -123,8 +424,10 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
         
         @Override
         public void onUpgrade(SQLiteDatabase db, final int oldVersion, final int newVersion) {
-            debug("Database upgraded");
             SQLite.this.db = db;
+            if (upgradeScripts.length() > 0)
+                runUpgradeScripts(oldVersion, newVersion);
+            debug("Database upgraded");
             form.runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
@@ -169,10 +472,24 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
         
         @Override
         protected Void doInBackground(DBRunnable... runnables) {
-            if (runnables.length != 1)
-                throw new RuntimeException("One runnable is required.");
-            runnables[0].run();
-            return null;
+            try {
+                if (runnables.length != 1)
+                    throw new RuntimeException("One runnable is required.");
+                runnables[0].run();
+                return null;
+            } finally {
+                publishChanges();
+                pendingTasks.decrementAndGet();
+                lastActivity = SystemClock.uptimeMillis();
+            }
+        }
+        
+        /**
+        * Queues the task on the database thread without waiting for it.
+        */
+        public void queue(DBRunnable... runnables) {
+            pendingTasks.incrementAndGet();
+            executeOnExecutor(AsyncTask.SERIAL_EXECUTOR, runnables);
         }
         
         public boolean waitUntilDone() {
@@ -191,8 +508,17 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
             }
         }
 
+        /**
+        * Waits for the task to finish without reporting errors, which the task reports itself.
+        */
+        public void waitQuietly() {
+            try {
+                get();
+            } catch (Exception e) {}
+        }
+
         public boolean executeAndWait(DBRunnable... runnables) {
-            executeOnExecutor(AsyncTask.SERIAL_EXECUTOR, runnables);
+            queue(runnables);
             return waitUntilDone();
         }
         
@@ -207,6 +533,7 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
         isRepl = form instanceof ReplForm;  // Note: form is defined in our superclass
         this.container = container;
         context = (Context)container.$context();
+        form.registerForOnPause(this);
     }
 
     private void debug(final String message) {
@@ -236,7 +563,17 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
         Toast.makeText(context, NAME + ": " + message, Toast.LENGTH_SHORT).show();
     }
     
+    /**
+    * Waits for an OpenDatabaseAsync call that's in progress, so calls made before it completes see the open database.
+    */
+    private void waitForOpen() {
+        DBAsyncTask pending = openTask;
+        if ((db == null) && (pending != null))
+            pending.waitQuietly();
+    }
+    
     private boolean checkDB(final String action) {
+        waitForOpen();
         if (db == null) {
             debug("Database is not open: " + action);
             return false;
@@ -328,6 +665,118 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
         this.dbVersion = dbVersion;
     }
     
+    /**
+    * Asset copied to create the database.
+    */
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+                    description = "Specifies an asset holding a prebuilt database that's copied into place when the database is opened and its file doesn't exist. "
+                                + "An asset whose name ends with .gz is decompressed while it's copied. "
+                                + "The prebuilt database should have its user_version set to the version it matches, "
+                                + "otherwise it's treated as a new database and DatabaseCreated fires."
+                    )
+    public String PrebuiltDatabase() {
+        return prebuiltDatabase;
+    }
+  
+    /**
+    * Asset copied to create the database.
+    */
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_ASSET,
+                      defaultValue = ""
+                      )
+    @SimpleProperty
+    public void PrebuiltDatabase(String prebuiltDatabase) {
+        this.prebuiltDatabase = prebuiltDatabase;
+    }
+    
+    /**
+    * Name prefix of the upgrade script assets.
+    */
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+                    description = "Specifies the start of the names of the assets holding upgrade scripts. "
+                                + "When the database is upgraded, the script for each version from the old version plus 1 to DBVersion is run, if it exists. "
+                                + "For example, with a prefix of upgrade- and an upgrade from version 1 to 3, the assets upgrade-2.sql and upgrade-3.sql are run in that order. "
+                                + "The scripts use the format described for ExecuteFile and run in the upgrade transaction before DatabaseUpgrade fires, "
+                                + "so if one fails the database is left at the old version and isn't opened."
+                    )
+    public String UpgradeScripts() {
+        return upgradeScripts;
+    }
+  
+    /**
+    * Name prefix of the upgrade script assets.
+    */
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_STRING,
+                      defaultValue = ""
+                      )
+    @SimpleProperty
+    public void UpgradeScripts(String upgradeScripts) {
+        this.upgradeScripts = upgradeScripts;
+    }
+    
+    /**
+    * Performance profile applied when the database is opened.
+    */
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+                    description = "Specifies the performance settings applied when the database is opened. "
+                                + "One of default, durable, balanced, bulk-load, read-mostly, or auto. "
+                                + "The cache_size, temp_store and mmap_size settings only reach Android's main connection, which runs writes and transactions; "
+                                + "with WAL, Android may run queries outside a transaction on extra connections that keep SQLite's defaults. "
+                                + "See the documentation for a description of each profile."
+                    )
+    public String PerformanceProfile() {
+        return performanceProfile;
+    }
+  
+    /**
+    * Performance profile applied when the database is opened.
+    */
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_STRING,
+                      defaultValue = "default")
+    @SimpleProperty
+    public void PerformanceProfile(String performanceProfile) {
+        performanceProfile = performanceProfile.trim().toLowerCase();
+        if ((! performanceProfile.equals("default")) &&
+            (! performanceProfile.equals("auto")) &&
+            (Profile.named(performanceProfile) == null)) {
+            debugException(new Exception("Unknown performance profile: " + performanceProfile));
+            return;
+        }
+        this.performanceProfile = performanceProfile;
+        if (db == null) return;
+        // journal mode and page size wait for the next open, the rest can change now
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                activeProfile = resolveProfile();
+                if ((db != null) && (activeProfile != null) && (! db.inTransaction()))
+                    applyProfile(db, activeProfile);
+            }
+        });
+    }
+    
+    /**
+    * Should the database be pre-warmed after it's opened.
+    */
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+                    description = "Specifies whether the schema is loaded and the warm-up queries and hot statements are run when the database is opened. "
+                                + "See AddWarmupQuery and AddHotStatement for more information."
+                    )
+    public boolean PrewarmOnOpen() {
+        return prewarm;
+    }
+  
+    /**
+    * Should the database be pre-warmed after it's opened.
+    */
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN,
+                      defaultValue = "false")
+    @SimpleProperty
+    public void PrewarmOnOpen(boolean prewarm) {
+        this.prewarm = prewarm;
+    }
+    
     /**
     * Should result lists contain column names.
     */
@@ -350,6 +799,131 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
     }
 
 
+    /**
+    * A named set of connection settings.
+    * journalMode and pageSize apply when the database is opened, the rest can be changed at any time.
+    */
+    private static class Profile {
+    
+        public static final Profile DURABLE = new Profile("durable", "WAL", 2, -2000, 0, 0, 4096);
+        public static final Profile BALANCED = new Profile("balanced", "WAL", 1, -8000, 64L * 1024 * 1024, 2, 4096);
+        public static final Profile BULK_LOAD = new Profile("bulk-load", "TRUNCATE", 0, -32000, 0, 2, 8192);
+        public static final Profile READ_MOSTLY = new Profile("read-mostly", "WAL", 1, -16000, 256L * 1024 * 1024, 2, 8192);
+        
+        public final String name;
+        public final String journalMode;
+        public final int synchronous;       // 0 = OFF, 1 = NORMAL, 2 = FULL
+        public final long cacheSize;        // negative values are KiB, like PRAGMA cache_size
+        public final long mmapSize;
+        public final int tempStore;         // 0 = DEFAULT, 1 = FILE, 2 = MEMORY
+        public final int pageSize;
+        
+        public Profile(String name, String journalMode, int synchronous, long cacheSize, long mmapSize, int tempStore, int pageSize) {
+            this.name = name;
+            this.journalMode = journalMode;
+            this.synchronous = synchronous;
+            this.cacheSize = cacheSize;
+            this.mmapSize = mmapSize;
+            this.tempStore = tempStore;
+            this.pageSize = pageSize;
+        }
+        
+        public static Profile named(String name) {
+            for (Profile profile : new Profile[] {DURABLE, BALANCED, BULK_LOAD, READ_MOSTLY})
+                if (profile.name.equals(name)) return profile;
+            return null;
+        }
+        
+    }
+    
+    // The profile picked by the auto benchmark, shared by all instances for the life of the process
+    private static volatile Profile autoProfile = null;
+    
+    /**
+    * Returns the profile for the PerformanceProfile property, or null for the default settings.
+    */
+    private Profile resolveProfile() {
+        if (performanceProfile.equals("auto"))
+            return benchmarkProfile();
+        return Profile.named(performanceProfile);
+    }
+    
+    /**
+    * Picks settings for this device with a short benchmark, once per process.
+    * The cost of a small synced write decides between durable and balanced (which syncs much less often),
+    * and the cache size is scaled to the memory available to the app.
+    */
+    private Profile benchmarkProfile() {
+        Profile profile = autoProfile;
+        if (profile != null) return profile;
+        long syncNanos = Long.MAX_VALUE;
+        File file = new File(context.getCacheDir(), NAME + "-benchmark.tmp");
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            byte[] page = new byte[4096];
+            long start = System.nanoTime();
+            for (int i = 0; i < AUTO_BENCHMARK_SYNCS; i++) {
+                raf.seek(0);
+                raf.write(page);
+                raf.getFD().sync();
+            }
+            syncNanos = (System.nanoTime() - start) / AUTO_BENCHMARK_SYNCS;
+        } catch (IOException e) {
+            debugException(e);
+        } finally {
+            try {
+                if (raf != null) raf.close();
+            } catch (IOException e) {}
+            file.delete();
+        }
+        Profile base = (syncNanos > AUTO_SLOW_SYNC_NANOS) ? Profile.BALANCED : Profile.DURABLE;
+        long cacheKiB = Math.max(2000, Math.min(Runtime.getRuntime().maxMemory() / 32, 32L * 1024 * 1024) / 1024);
+        profile = new Profile("auto", base.journalMode, base.synchronous, -cacheKiB, base.mmapSize, base.tempStore, base.pageSize);
+        autoProfile = profile;
+        debug("Auto profile: " + base.name + ", sync " + (syncNanos / 1000) + "us, cache " + cacheKiB + "KiB");
+        return profile;
+    }
+    
+    /**
+    * Applies the settings of a profile that can change while the database is open.
+    * They only reach the primary connection; Android has no hook for the extra read connections it opens in WAL mode.
+    * Must run on the database thread outside of a transaction.
+    */
+    private void applyProfile(SQLiteDatabase db, Profile profile) {
+        db.execSQL("PRAGMA synchronous = " + profile.synchronous);
+        db.execSQL("PRAGMA cache_size = " + profile.cacheSize);
+        db.execSQL("PRAGMA temp_store = " + profile.tempStore);
+        Cursor cursor = db.rawQuery("PRAGMA mmap_size = " + profile.mmapSize, null);
+        cursor.moveToNext();
+        cursor.close();
+    }
+    
+    /**
+    * Switches to the bulk-load settings for the duration of a file import.
+    * Nothing changes when the default profile is in use or a transaction is open.
+    * Must run on the database thread.
+    * @return the profile to restore with endBulkLoad, or null if nothing changed
+    */
+    private Profile beginBulkLoad() {
+        Profile profile = activeProfile;
+        if ((profile == null) || (profile == Profile.BULK_LOAD) || db.inTransaction()) return null;
+        applyProfile(db, Profile.BULK_LOAD);
+        return profile;
+    }
+    
+    /**
+    * Restores the settings changed by beginBulkLoad.
+    */
+    private void endBulkLoad(Profile profile) {
+        if ((profile == null) || (db == null) || db.inTransaction()) return;
+        try {
+            applyProfile(db, profile);
+        } catch (SQLException e) {
+            debugException(e);
+        }
+    }
+
     //========================================================
     // Utility methods
     //
@@ -370,6 +944,16 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
         return context.getDatabasePath(dbName).exists();
     }
     
+    /**
+    * Returns true if another component has the database file open.
+    */
+    private boolean databaseInUse() {
+        String path = context.getDatabasePath(dbName).getPath();
+        synchronized (sharedDatabases) {
+            return sharedDatabases.containsKey(path) || sharedDatabases.containsKey("memory:" + path);
+        }
+    }
+    
     /**
     * Delete the database.
     */
@@ -377,7 +961,8 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
                                 + "This deletes the database file permanently."
                     )
     public void DeleteDatabase() {
-        if (db != null) {
+        waitForOpen();
+        if ((db != null) || databaseInUse()) {
             debugException(new Exception("Unable to delete when the database is open."));
             return;
         }
@@ -387,236 +972,4387 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
     
     /**
     * Import a SQLite database file.
-    * This is probably not best done on the main thread.
     */
     @SimpleFunction(description = "Imports a SQLite database completely replacing the currently closed database. "
+                                + "The file is copied to a temporary file which replaces the database only when the copy is complete. "
                                 + "Returns true if the import was successful, false otherwise."
                     )
     public boolean ImportDatabase(String fileName) {
-        if (db != null) {
-            debugException(new Exception("Unable to import when the database is open."));
-            return false;
-        }
-        InputStream is = null;
-        OutputStream os = null;
-        try {
-            is = openInputStream(fileName);
-            os = new FileOutputStream(context.getDatabasePath(dbName));
-            byte[] buf = new byte[1024];
-            int len;
-            while ((len = is.read(buf)) > 0)
-                os.write(buf, 0, len);
-            debug("Database imported");
-            return true;
-        } catch (IOException e) {
-            debugException(e);
-            return false;
-        } finally {
-            try {
-                if (is != null) is.close();
-                if (os != null) os.close();
-            } catch (IOException e) {}
-        }
+        return importDatabase(null, fileName, false);
+    }
+    
+    /**
+    * Import a SQLite database file, asynchronously.
+    * @param tag: The identifier for the result of this operation
+    * @param fileName The name of the file
+    */
+    @SimpleFunction(description = "Imports a SQLite database, asynchronously. "
+                                + "The tag identifies the progress of this call in the Progress event and the result in the AfterImportDatabase event. "
+                                + "See ImportDatabase for more information."
+                    )
+    public void ImportDatabaseAsync(final String tag, final String fileName) {
+        AsynchUtil.runAsynchronously(new Runnable() {
+            @Override
+            public void run() {
+                final boolean res = importDatabase(tag, fileName, false);
+                form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        AfterImportDatabase(tag, res);
+                    }
+                });
+            }
+        });
     }
     
     /**
     * Exports the database.
-    * This is probably not best done on the main thread.
     */
     @SimpleFunction(description = "Exports the currently closed database to the specified file. "
-                                + "The resulting file is a complete SQLite database."
-                                + "Returns true if the import was successful, false otherwise."
+                                + "The resulting file is a complete SQLite database. "
+                                + "The database is copied to a temporary file which replaces the specified file only when the copy is complete. "
+                                + "Returns true if the export was successful, false otherwise."
                     )
     public boolean ExportDatabase(String fileName) {
-        if (db != null) {
-            debugException(new Exception("Unable to export when the database is open."));
-            return false;
-        }
-        InputStream is = null;
-        OutputStream os = null;
-        try {
-            is = new FileInputStream(context.getDatabasePath(dbName));
-            os = new FileOutputStream(resolveFileName(fileName));
-            byte[] buf = new byte[1024];
-            int len;
-            while ((len = is.read(buf)) > 0)
-                os.write(buf, 0, len);
-            debug("Database exported");
-            return true;
-        } catch (IOException e) {
-            debugException(e);
-            return false;
-        } finally {
-            try {
-                if (is != null) is.close();
-                if (os != null) os.close();
-            } catch (IOException e) {}
-        }
+        return exportDatabase(null, fileName, false);
     }
-
-    //========================================================
-    // Database methods
-    //
     
     /**
-    * Opens the database.
+    * Exports the database, asynchronously.
+    * @param tag: The identifier for the result of this operation
+    * @param fileName The name of the file
     */
-    @SimpleFunction(description = "Opens the database. "
-                                + "If the database is already open, nothing happens."
+    @SimpleFunction(description = "Exports the currently closed database, asynchronously. "
+                                + "The tag identifies the progress of this call in the Progress event and the result in the AfterExportDatabase event. "
+                                + "See ExportDatabase for more information."
                     )
-    public void OpenDatabase() {
-        if (db == null) {
-            final DBAsyncTask task = new DBAsyncTask();
+    public void ExportDatabaseAsync(final String tag, final String fileName) {
+        AsynchUtil.runAsynchronously(new Runnable() {
+            @Override
+            public void run() {
+                final boolean res = exportDatabase(tag, fileName, false);
+                form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        AfterExportDatabase(tag, res);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+    * Import a gzip compressed SQLite database file.
+    */
+    @SimpleFunction(description = "Imports a gzip compressed SQLite database completely replacing the currently closed database. "
+                                + "The file is decompressed while it's copied, so an asset like //seed.db.gz can be imported directly. "
+                                + "Returns true if the import was successful, false otherwise. "
+                                + "See ImportDatabase for more information."
+                    )
+    public boolean ImportDatabaseCompressed(String fileName) {
+        return importDatabase(null, fileName, true);
+    }
+    
+    /**
+    * Import a gzip compressed SQLite database file, asynchronously.
+    * @param tag: The identifier for the result of this operation
+    * @param fileName The name of the file
+    */
+    @SimpleFunction(description = "Imports a gzip compressed SQLite database, asynchronously. "
+                                + "The tag identifies the progress of this call in the Progress event and the result in the AfterImportDatabase event. "
+                                + "See ImportDatabaseCompressed for more information."
+                    )
+    public void ImportDatabaseCompressedAsync(final String tag, final String fileName) {
+        AsynchUtil.runAsynchronously(new Runnable() {
+            @Override
+            public void run() {
+                final boolean res = importDatabase(tag, fileName, true);
+                form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        AfterImportDatabase(tag, res);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+    * Exports the database, gzip compressed.
+    */
+    @SimpleFunction(description = "Exports the currently closed database to the specified file, gzip compressed. "
+                                + "Returns true if the export was successful, false otherwise. "
+                                + "See ExportDatabase for more information."
+                    )
+    public boolean ExportDatabaseCompressed(String fileName) {
+        return exportDatabase(null, fileName, true);
+    }
+    
+    /**
+    * Exports the database, gzip compressed, asynchronously.
+    * @param tag: The identifier for the result of this operation
+    * @param fileName The name of the file
+    */
+    @SimpleFunction(description = "Exports the currently closed database, gzip compressed, asynchronously. "
+                                + "The tag identifies the progress of this call in the Progress event and the result in the AfterExportDatabase event. "
+                                + "See ExportDatabaseCompressed for more information."
+                    )
+    public void ExportDatabaseCompressedAsync(final String tag, final String fileName) {
+        AsynchUtil.runAsynchronously(new Runnable() {
+            @Override
+            public void run() {
+                final boolean res = exportDatabase(tag, fileName, true);
+                form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        AfterExportDatabase(tag, res);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+    * Copies a file over the closed database.
+    * The copy runs on the database thread so it can't overlap an OpenDatabase call.
+    * @param tag: The progress tag, or null for no progress events
+    * @param compressed: Whether or not the file is gzip compressed
+    */
+    private boolean importDatabase(final String tag, final String fileName, final boolean compressed) {
+        waitForOpen();
+        if ((db != null) || databaseInUse()) {
+            debugException(new Exception("Unable to import when the database is open."));
+            return false;
+        }
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                File dbFile = context.getDatabasePath(dbName);
+                try {
+                    if (compressed) {
+                        InputStream is = new GZIPInputStream(openInputStream(fileName), STREAM_BUFFER_SIZE);
+                        try {
+                            copyToFile(tag, Channels.newChannel(is), 0, -1, dbFile);
+                        } finally {
+                            is.close();
+                        }
+                    } else
+                        copyFromInput(tag, fileName, dbFile);
+                    // A journal or WAL left over from the old database would be applied to the new one
+                    new File(dbFile.getPath() + "-journal").delete();
+                    new File(dbFile.getPath() + "-wal").delete();
+                    new File(dbFile.getPath() + "-shm").delete();
+                    task.success = true;
+                } catch (IOException e) {
+                    debugException(e);
+                }
+            }
+        });
+        if (task.success)
+            debug("Database imported");
+        return task.success;
+    }
+    
+    /**
+    * Copies the closed database to a file.
+    * @param tag: The progress tag, or null for no progress events
+    * @param compressed: Whether or not to gzip compress the file
+    */
+    private boolean exportDatabase(final String tag, final String fileName, final boolean compressed) {
+        waitForOpen();
+        if ((db != null) || databaseInUse()) {
+            debugException(new Exception("Unable to export when the database is open."));
+            return false;
+        }
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                FileInputStream is = null;
+                try {
+                    File dbFile = context.getDatabasePath(dbName);
+                    is = new FileInputStream(dbFile);
+                    if (compressed)
+                        compressToFile(tag, is, dbFile.length(), new File(resolveFileName(fileName)));
+                    else
+                        copyToFile(tag, is.getChannel(), 0, dbFile.length(), new File(resolveFileName(fileName)));
+                    task.success = true;
+                } catch (IOException e) {
+                    debugException(e);
+                } finally {
+                    try {
+                        if (is != null) is.close();
+                    } catch (IOException e) {}
+                }
+            }
+        });
+        if (task.success)
+            debug("Database exported");
+        return task.success;
+    }
+
+    //========================================================
+    // Database methods
+    //
+    
+    /**
+    * Opens the database.
+    */
+    @SimpleFunction(description = "Opens the database. "
+                                + "If the database is already open, nothing happens. "
+                                + "If another SQLite component in the app already has the same database file open, its connection is shared, "
+                                + "along with its page cache, statement cache and transactions, and the database isn't created, upgraded or downgraded again. "
+                                + "The connection is opened with SQLite's recursive_triggers setting on, so rows deleted by a REPLACE conflict fire delete triggers "
+                                +   "and triggers can fire themselves; the extension's row counters, summaries, search, spatial and blob triggers depend on it."
+                    )
+    public void OpenDatabase() {
+        waitForOpen();
+        if (db == null) {
+            final DBAsyncTask task = new DBAsyncTask();
+            task.executeAndWait(openRunnable(task));
+        }
+    }
+    
+    /**
+    * Opens the database, asynchronously.
+    */
+    @SimpleFunction(description = "Opens the database on a background thread and returns immediately. "
+                                + "The DatabaseOpened event fires when the database is ready. "
+                                + "Calls made before the database is ready wait for it instead of failing. "
+                                + "If the database is already open or being opened, nothing happens."
+                    )
+    public void OpenDatabaseAsync() {
+        if ((db != null) || (openTask != null)) return;
+        final DBAsyncTask task = new DBAsyncTask();
+        openTask = task;
+        task.queue(openRunnable(task));
+    }
+    
+    /**
+    * Returns the runnable that opens the database and pre-warms it if required.
+    */
+    private DBRunnable openRunnable(final DBAsyncTask task) {
+        final boolean prewarm = this.prewarm;
+        final String[] queries = warmupQueries.toArray(new String[0]);
+        final String[] statements = hotStatements.toArray(new String[0]);
+        return new DBRunnable() {
+            @Override
+            public void run() {
+                try {
+                    if (db != null) {
+                        task.success = true;
+                        return;
+                    }
+                    final boolean memory = inMemory;
+                    File dbFile = context.getDatabasePath(dbName);
+                    String key = (memory ? "memory:" : "") + dbFile.getPath();
+                    synchronized (sharedDatabases) {
+                        // an in-memory copy and a file connection would overwrite each other's changes
+                        if (sharedDatabases.containsKey((memory ? "" : "memory:") + dbFile.getPath())) {
+                            debugException(new Exception("Unable to open the database " + (memory ? "in memory" : "from its file")
+                                                         + " while another component has it open " + (memory ? "from its file." : "in memory.")));
+                            return;
+                        }
+                        shared = sharedDatabases.get(key);
+                        if (shared != null)
+                            shared.references++;
+                    }
+                    if (shared != null) {
+                        // another component has the file open, so use its connection
+                        activeProfile = shared.profile;
+                        db = shared.db;
+                        task.success = true;
+                        debug("Database opened (shared)");
+                        form.runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                DatabaseOpened();
+                            }
+                        });
+                    } else {
+                        try {
+                            activeProfile = resolveProfile();
+                            if ((prebuiltDatabase.length() > 0) && (! dbFile.exists()))
+                                copyPrebuiltDatabase(dbFile);
+                            db = new DBHelper(context).getWritableDatabase();
+                            task.success = true;
+                        } catch (IOException e) {
+                            debugException(e);
+                            return;
+                        } catch (SQLException e) {
+                            db = null;
+                            debugException(e);
+                            return;
+                        }
+                        shared = new SharedDatabase(key, db, activeProfile, memory);
+                        synchronized (sharedDatabases) {
+                            sharedDatabases.put(key, shared);
+                        }
+                    }
+                    schema = null;
+                    try {
+                        refreshSchema();
+                    } catch (SQLException e) {
+                        debugException(e);
+                    }
+                    if (prewarm)
+                        prewarm(queries, statements);
+                    tableWrites.clear();
+                    for (LiveQuery query : liveQueries())
+                        query.schedule();
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            scheduleMaintenance();
+                            scheduleSnapshot();
+                        }
+                    });
+                } finally {
+                    if (openTask == task)
+                        openTask = null;
+                }
+            }
+        };
+    }
+    
+    /**
+    * Copies the prebuilt database asset to the database file, which doesn't exist.
+    * Must run on the database thread.
+    */
+    private void copyPrebuiltDatabase(final File dbFile) throws IOException {
+        dbFile.getParentFile().mkdirs();
+        String fileName = "//" + prebuiltDatabase;
+        if (prebuiltDatabase.endsWith(".gz")) {
+            InputStream is = new GZIPInputStream(openInputStream(fileName), STREAM_BUFFER_SIZE);
+            try {
+                copyToFile(null, Channels.newChannel(is), 0, -1, dbFile);
+            } finally {
+                is.close();
+            }
+        } else
+            copyFromInput(null, fileName, dbFile);
+        // a journal or WAL left over from a deleted database would be applied to the copy
+        new File(dbFile.getPath() + "-journal").delete();
+        new File(dbFile.getPath() + "-wal").delete();
+        new File(dbFile.getPath() + "-shm").delete();
+        debug("Prebuilt database copied");
+    }
+    
+    /**
+    * Runs the upgrade script assets for the versions after oldVersion up to newVersion.
+    * Runs on the database thread inside the upgrade transaction, so an error aborts the upgrade.
+    */
+    private void runUpgradeScripts(final int oldVersion, final int newVersion) {
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            String fileName = "//" + upgradeScripts + version + ".sql";
+            InputStream is;
+            try {
+                is = openInputStream(fileName);
+            } catch (IOException e) {
+                continue;                       // no script for this version
+            }
+            BufferedReader file = new BufferedReader(new InputStreamReader(is));
+            int[] count = new int[] {0};
+            try {
+                executeStatements(file, count);
+            } catch (IOException e) {
+                throw new SQLException("Unable to read " + fileName + ": " + e.getMessage());
+            } finally {
+                try {
+                    file.close();
+                } catch (IOException e) {}
+            }
+            debug("Upgrade script " + fileName + ": " + count[0] + " statements executed");
+        }
+    }
+    
+    /**
+    * Loads the schema, runs the warm-up queries to pull their pages into the page cache, and compiles the
+    * hot statements into the connection's prepared statement cache.
+    * Must run on the database thread.
+    */
+    private void prewarm(String[] queries, String[] statements) {
+        if (statements.length > DEFAULT_SQL_CACHE_SIZE)
+            db.setMaxSqlCacheSize(Math.min(statements.length + DEFAULT_SQL_CACHE_SIZE, MAX_SQL_CACHE_SIZE));
+        Cursor cursor = db.rawQuery("SELECT type, name, tbl_name, sql FROM sqlite_master", null);
+        while (cursor.moveToNext());
+        cursor.close();
+        for (String sql : queries) {
+            try {
+                cursor = db.rawQuery(sql, null);
+                while (cursor.moveToNext());
+                cursor.close();
+            } catch (SQLException e) {
+                debugException(e);
+            }
+        }
+        for (String sql : statements) {
+            try {
+                db.compileStatement(sql).close();
+            } catch (SQLException e) {
+                debugException(e);
+            }
+        }
+        debug("Database pre-warmed");
+    }
+    
+    /**
+    * Adds a warm-up query.
+    * @param sql: The SQL SELECT statement
+    */
+    @SimpleFunction(description = "Adds a SELECT statement that is run when the database is opened and PrewarmOnOpen is true. "
+                                + "The results are read and thrown away, which loads the pages the query uses into the database cache. "
+                                + "The statement can't have bind parameters."
+                    )
+    public void AddWarmupQuery(String sql) {
+        warmupQueries.add(sql);
+    }
+    
+    /**
+    * Adds a hot statement.
+    * @param sql: The SQL statement
+    */
+    @SimpleFunction(description = "Adds a SQL statement that is compiled when the database is opened and PrewarmOnOpen is true. "
+                                + "Compiled statements are cached, so later calls using exactly the same SQL skip compiling it. "
+                                + "The statement is not executed and can contain '?' bind parameters."
+                    )
+    public void AddHotStatement(String sql) {
+        hotStatements.add(sql);
+    }
+    
+    /**
+    * Removes all warm-up queries and hot statements.
+    */
+    @SimpleFunction(description = "Removes all warm-up queries and hot statements.")
+    public void ClearWarmup() {
+        warmupQueries.clear();
+        hotStatements.clear();
+    }
+            
+    /**
+    * Closes the database.
+    */
+    @SimpleFunction(description = "Closes the database. If the database is already closed, nothing happens. "
+                                + "Any uncommited transactions will be rolled back. "
+                                + "If other SQLite components in the app opened the same database file, they share one connection "
+                                + "and it stays open, along with any open transaction, until the last of them closes it."
+                    )
+    public void CloseDatabase() {
+        waitForOpen();
+        if (db != null) {
+            final DBAsyncTask task = new DBAsyncTask();
+            task.executeAndWait(new DBRunnable() {
+                @Override
+                public void run() {
+                    if (db == null) return;
+                    for (WriteBuffer buffer : writeBuffers()) {
+                        try {
+                            buffer.flush();
+                        } catch (SQLException e) {
+                            debugException(e);
+                        }
+                    }
+                    if (shared.inMemory) {
+                        // closing the last use rolls back any open transaction, so end it now to save what was committed
+                        if (shared.references == 1)
+                            while (db.inTransaction())
+                                db.endTransaction();
+                        try {
+                            snapshot();
+                        } catch (Exception e) {
+                            debugException(e);
+                        }
+                    }
+                    synchronized (sharedDatabases) {
+                        if (--shared.references == 0) {
+                            sharedDatabases.remove(shared.key);
+                            db.close();
+                        }
+                    }
+                    db = null;
+                    shared = null;
+                    schema = null;
+                    pendingChanges.clear();         // closing rolls back any open transaction
+                    changesRolledBack = false;
+                    task.success = true;
+                }
+            });
+            if (task.success) {
+                scheduleMaintenance();
+                scheduleSnapshot();
+                debug("Database closed");
+                DatabaseClosed();
+            }
+        }
+    }
+    
+    /**
+    * Indicates if the database has been opened or not.
+    */
+    @SimpleFunction(description = "Returns true if the database is open, false otherwise.")
+    public boolean IsDatabaseOpen() {
+        return db != null;
+    }
+    
+    /**
+    * Attaches another database file to the open database.
+    * @param alias: The schema name used for the attached database in SQL statements
+    * @param fileName: The database file
+    * @param readOnly: Whether the attached database is only read
+    * @return true if the database was attached, false otherwise
+    */
+    @SimpleFunction(description = "Attaches another database file to the open database under the alias, so statements can use its tables as alias.table "
+                                + "and a single SelectSQL can join tables from both files. "
+                                + "A prefix of // specifies an asset, which is copied to the app's private storage the first time and after the app is updated, "
+                                + "and is always attached read only. "
+                                + "A prefix of / specifies a file on the SD card, no prefix specifies a file in the application's private storage. "
+                                + "Read only databases are opened with memory mapped reads, and assets are also opened as immutable, which skips file locking. "
+                                + "Attaching turns off write-ahead logging until the database is closed, since Android can only attach to a single connection. "
+                                + "Attached databases stay attached until DetachDatabase is called or the database is closed. "
+                                + "A transaction can't be open. "
+                                + "Returns true if the database was attached, false if an error occurs or the database is not open."
+                    )
+    public boolean AttachDatabase(final String alias, final String fileName, final boolean readOnly) {
+        if (! checkDB("AttachDatabase")) return false;
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                try {
+                    boolean asset = fileName.startsWith("//");
+                    File file;
+                    if (asset) {
+                        file = context.getDatabasePath("asset-" + fileName.substring(2).replace('/', '_'));
+                        long updated = isRepl ? new File(Environment.getExternalStorageDirectory().getPath() + "/AppInventor/assets/" + fileName).lastModified()
+                                              : new File(context.getPackageCodePath()).lastModified();
+                        if ((! file.exists()) || (file.lastModified() < updated)) {
+                            file.getParentFile().mkdirs();
+                            copyFromInput(null, fileName, file);
+                            debug("Copied asset " + fileName);
+                        }
+                    } else
+                        file = new File(resolveFileName(fileName));
+                    attach(alias, file.getPath(), asset || readOnly, asset);
+                    invalidateSchema();
+                    task.success = true;
+                } catch (Exception e) {
+                    debugException(e);
+                }
+            }
+        });
+        if (task.success)
+            debug("Database attached: " + alias);
+        return task.success;
+    }
+    
+    /**
+    * Detaches an attached database.
+    * @param alias: The alias of the attached database
+    * @return true if the database was detached, false otherwise
+    */
+    @SimpleFunction(description = "Detaches a database attached with AttachDatabase. "
+                                + "A transaction can't be open. "
+                                + "Returns true if the database was detached, false if an error occurs or the database is not open."
+                    )
+    public boolean DetachDatabase(final String alias) {
+        if (! checkDB("DetachDatabase")) return false;
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                try {
+                    db.execSQL("DETACH DATABASE " + quoteName(alias));
+                    invalidateSchema();
+                    task.success = true;
+                } catch (SQLException e) {
+                    debugException(e);
+                }
+            }
+        });
+        if (task.success)
+            debug("Database detached: " + alias);
+        return task.success;
+    }
+    
+    /**
+    * Returns the file of an attached database, or null if the alias isn't attached.
+    * Must run on the database thread.
+    */
+    private String attachedFile(final String alias) {
+        Cursor c = db.rawQuery("PRAGMA database_list", null);
+        try {
+            while (c.moveToNext())
+                if (c.getString(1).equals(alias)) return c.getString(2);
+        } finally {
+            c.close();
+        }
+        return null;
+    }
+    
+    /**
+    * Attaches a database file. Read only files are attached with a URI that opens them read only, and immutable ones
+    * without file locking. SQLite only understands URI file names when it's built to, so if the file attached isn't the one asked for,
+    * the plain path is attached instead.
+    * Must run on the database thread.
+    */
+    private void attach(final String alias, final String path, final boolean readOnly, final boolean immutable) {
+        String name = quoteName(alias);
+        if (readOnly) {
+            String uri = "file:" + path.replace("%", "%25").replace("?", "%3f").replace("#", "%23") + "?mode=ro" + (immutable ? "&immutable=1" : "");
+            try {
+                // execSQL is what lets Android notice the attachment and switch to a single connection
+                db.execSQL("ATTACH DATABASE ? AS " + name, new Object[] {uri});
+                if (path.equals(attachedFile(alias))) {
+                    db.execSQL("PRAGMA " + name + ".mmap_size = " + ATTACHED_MMAP_SIZE);
+                    return;
+                }
+                db.execSQL("DETACH DATABASE " + name);
+            } catch (SQLException e) {
+                // fall back to the plain path
+            }
+        }
+        db.execSQL("ATTACH DATABASE ? AS " + name, new Object[] {path});
+        if (readOnly)
+            db.execSQL("PRAGMA " + name + ".mmap_size = " + ATTACHED_MMAP_SIZE);
+    }
+    
+    /**
+    * Returns the number of tables in the database.
+    */
+    @SimpleFunction(description = "Returns the number of tables in the database, or -1 if an error occurs or the database is not open. "
+                                + "Tables used by SQLite and the extension itself, whose names start with sqlite_ or __, "
+                                +   "and the tables search and spatial indexes keep their data in, aren't counted. "
+                                + "The answer comes from the schema cache.")
+    public int TableCount() {
+        if (! checkDB("TableCount")) return -1;
+        Schema s = schema();
+        return (s == null) ? -1 : s.appTables.size();
+    }
+    
+    /**
+    * Returns a list of names of the tables in the the database.
+    */
+    @SimpleFunction(description = "Returns a list of names of the tables in the database, or an empty list if an error occurs or the database is not open. "
+                                + "Tables used by SQLite and the extension itself, whose names start with sqlite_ or __, "
+                                +   "and the tables search and spatial indexes keep their data in, aren't listed. "
+                                + "The answer comes from the schema cache.")
+    public YailList TableNames() {
+        if (! checkDB("TableNames")) return YailList.makeEmptyList();
+        Schema s = schema();
+        if (s == null) return YailList.makeEmptyList();
+        return YailList.makeList(new ArrayList<String>(s.appTables));
+    }
+    
+    /**
+    * Returns true if the table exists in the database, false otherwise.
+    */
+    @SimpleFunction(description = "Returns true if the table exists in the database, or false if the table does not exist or an error occurs or the database is not open. "
+                                + "The answer comes from the schema cache.")
+    public boolean TableExists(final String table) {
+        if (! checkDB("TableExists")) return false;
+        Schema s = schema();
+        return (s != null) && s.tables.containsKey(table);
+    }
+    
+    /**
+    * Returns a list of the names of the columns in a table.
+    */
+    @SimpleFunction(description = "Returns a list of the names of the columns in a table, in the order they were defined, "
+                                + "or an empty list if the table does not exist or an error occurs or the database is not open. "
+                                + "The answer comes from the schema cache.")
+    public YailList TableColumns(final String table) {
+        if (! checkDB("TableColumns")) return YailList.makeEmptyList();
+        TableInfo info = tableInfo(table);
+        if (info == null) return YailList.makeEmptyList();
+        return YailList.makeList(info.columns);
+    }
+    
+    /**
+    * Returns the declared type of a column.
+    */
+    @SimpleFunction(description = "Returns the declared type of a column in a table, which is an empty string if the column was declared without a type, "
+                                + "or an empty string if the column does not exist or an error occurs or the database is not open. "
+                                + "The answer comes from the schema cache.")
+    public String ColumnType(final String table, final String column) {
+        if (! checkDB("ColumnType")) return "";
+        TableInfo info = tableInfo(table);
+        if (info == null) return "";
+        String type = info.columnTypes.get(column.toLowerCase());
+        return (type == null) ? "" : type;
+    }
+    
+    /**
+    * Returns a list of the names of the indexes on a table.
+    */
+    @SimpleFunction(description = "Returns a list of the names of the indexes on a table, including the automatic indexes for UNIQUE and PRIMARY KEY constraints, "
+                                + "or an empty list if the table does not exist or an error occurs or the database is not open. "
+                                + "The answer comes from the schema cache.")
+    public YailList TableIndexes(final String table) {
+        if (! checkDB("TableIndexes")) return YailList.makeEmptyList();
+        TableInfo info = tableInfo(table);
+        if (info == null) return YailList.makeEmptyList();
+        return YailList.makeList(new ArrayList<String>(info.indexes.keySet()));
+    }
+    
+    /**
+    * Returns a list of the names of the columns in an index.
+    */
+    @SimpleFunction(description = "Returns a list of the names of the columns in an index, in index order, "
+                                + "or an empty list if the index does not exist or an error occurs or the database is not open. "
+                                + "The answer comes from the schema cache.")
+    public YailList IndexColumns(final String index) {
+        if (! checkDB("IndexColumns")) return YailList.makeEmptyList();
+        Schema s = schema();
+        if (s == null) return YailList.makeEmptyList();
+        for (TableInfo info : s.tables.values()) {
+            ArrayList<String> columns = info.indexes.get(index);
+            if (columns != null)
+                return YailList.makeList(columns);
+        }
+        return YailList.makeEmptyList();
+    }
+    
+    /**
+    * Snapshot of the tables, columns and indexes in the database.
+    * A snapshot is never modified after it's loaded, it's replaced.
+    */
+    private static class Schema {
+        public final int version;
+        public volatile long checked;
+        public final LinkedHashMap<String, TableInfo> tables = new LinkedHashMap<String, TableInfo>();
+        public final ArrayList<String> appTables = new ArrayList<String>();       // without SQLite's, the extension's and shadow tables
+        
+        public Schema(int version) {
+            this.version = version;
+            checked = SystemClock.uptimeMillis();
+        }
+    }
+    
+    /**
+    * The columns and indexes of a table.
+    */
+    private static class TableInfo {
+        public final ArrayList<String> columns = new ArrayList<String>();
+        public final HashMap<String, String> columnTypes = new HashMap<String, String>();     // keyed by lower case column name
+        public final LinkedHashMap<String, ArrayList<String>> indexes = new LinkedHashMap<String, ArrayList<String>>();
+    }
+    
+    /**
+    * Returns the cached information for a table, or null if it doesn't exist.
+    */
+    private TableInfo tableInfo(final String table) {
+        Schema s = schema();
+        return (s == null) ? null : s.tables.get(table);
+    }
+    
+    /**
+    * Returns the schema cache, refreshing it first if it's been invalidated or hasn't been checked recently.
+    * Lookups within SCHEMA_CHECK_INTERVAL of the last check don't touch the database at all.
+    * @return the schema, or null if it couldn't be loaded
+    */
+    private Schema schema() {
+        Schema current = schema;
+        if ((current != null) && (SystemClock.uptimeMillis() - current.checked < SCHEMA_CHECK_INTERVAL))
+            return current;
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                try {
+                    refreshSchema();
+                } catch (SQLException e) {
+                    debugException(e);
+                }
+            }
+        });
+        return schema;
+    }
+    
+    /**
+    * Reloads the schema cache if the schema version has changed or the cache was invalidated.
+    * Must run on the database thread.
+    */
+    private void refreshSchema() {
+        if (db == null) {
+            schema = null;
+            return;
+        }
+        int version = Integer.parseInt(queryString("PRAGMA schema_version", null));
+        Schema current = schema;
+        if ((current != null) && (current.version == version)) {
+            current.checked = SystemClock.uptimeMillis();
+            return;
+        }
+        Schema s = new Schema(version);
+        ArrayList<String> virtualTables = new ArrayList<String>();
+        Cursor cursor = db.rawQuery("SELECT name, sql FROM sqlite_master WHERE type='table'", null);
+        try {
+            while (cursor.moveToNext()) {
+                s.tables.put(cursor.getString(0), new TableInfo());
+                if ((! cursor.isNull(1)) && VIRTUAL_TABLE_PATTERN.matcher(cursor.getString(1)).lookingAt())
+                    virtualTables.add(cursor.getString(0).toLowerCase());
+            }
+        } finally {
+            cursor.close();
+        }
+        for (String table : s.tables.keySet())
+            if (! isInternalTable(table, virtualTables))
+                s.appTables.add(table);
+        for (String table : s.tables.keySet()) {
+            TableInfo info = s.tables.get(table);
+            cursor = db.rawQuery("PRAGMA table_info(" + quoteName(table) + ")", null);
+            try {
+                while (cursor.moveToNext()) {
+                    info.columns.add(cursor.getString(1));
+                    info.columnTypes.put(cursor.getString(1).toLowerCase(), cursor.isNull(2) ? "" : cursor.getString(2));
+                }
+            } finally {
+                cursor.close();
+            }
+            ArrayList<String> indexNames = new ArrayList<String>();
+            cursor = db.rawQuery("PRAGMA index_list(" + quoteName(table) + ")", null);
+            try {
+                while (cursor.moveToNext())
+                    indexNames.add(cursor.getString(1));
+            } finally {
+                cursor.close();
+            }
+            for (String index : indexNames) {
+                ArrayList<String> columns = new ArrayList<String>();
+                cursor = db.rawQuery("PRAGMA index_info(" + quoteName(index) + ")", null);
+                try {
+                    while (cursor.moveToNext())
+                        columns.add(cursor.isNull(2) ? null : cursor.getString(2));
+                } finally {
+                    cursor.close();
+                }
+                info.indexes.put(index, columns);
+            }
+        }
+        schema = s;
+    }
+    
+    /**
+    * Returns true if the table exists, for lookups made on the database thread, where schema() would deadlock.
+    * Must run on the database thread.
+    */
+    private boolean hasTable(final String table) {
+        refreshSchema();
+        return (schema != null) && schema.tables.containsKey(table);
+    }
+    
+    /**
+    * Returns true if a table belongs to SQLite or the extension rather than the app, including the shadow tables
+    * of virtual tables.
+    */
+    private static boolean isInternalTable(final String table, final ArrayList<String> virtualTables) {
+        String name = table.toLowerCase();
+        if (name.startsWith("__") || name.startsWith("sqlite_")) return true;
+        for (String virtual : virtualTables)
+            if (name.startsWith(virtual) && SHADOW_TABLE_PATTERN.matcher(name.substring(virtual.length())).matches()) return true;
+        return false;
+    }
+    
+    /**
+    * Throws away the schema cache so the next lookup reloads it.
+    */
+    private void invalidateSchema() {
+        schema = null;
+    }
+    
+    /**
+    * Returns true if the SQL statement changes the schema.
+    */
+    private static boolean isDDL(final String sql) {
+        return DDL_PATTERN.matcher(sql).lookingAt();
+    }
+    
+    /**
+    * Returns the number of records in a table.
+    */
+    @SimpleFunction(description = "Returns the number of rows in a table, or -1 if an error occurs or the database is not open. "
+                                + "If a row counter is enabled for the table, the count is read from it instead of counting the rows. "
+                                + "See EnableRowCounter for more information."
+                    )
+    public int TableRowCount(final String table) {
+        if (! checkDB("TableRowCount")) return -1;
+        final boolean counted = TableExists(ROW_COUNTS_TABLE);
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                try {
+                    String count = null;
+                    if (counted)
+                        count = queryString("SELECT n FROM " + ROW_COUNTS_TABLE + " WHERE tbl = ?", new String[] {table});
+                    if (count == null)
+                        count = queryString("SELECT count(1) FROM " + quoteName(table), null);
+                    task.count = Integer.parseInt(count);
+                } catch (SQLException e) {
+                    debugException(e);
+                }
+            }
+        });
+        return task.count;
+    }
+    
+    /**
+    * Returns the estimated number of records in a table.
+    */
+    @SimpleFunction(description = "Returns the estimated number of rows in a table from the statistics gathered by the last ANALYZE, "
+                                + "which is instant but may be out of date. "
+                                + "If there are no statistics for the table, the result of TableRowCount is returned. "
+                                + "If an error occurs or the database is not open, -1 is returned."
+                    )
+    public int TableRowCountEstimate(final String table) {
+        if (! checkDB("TableRowCountEstimate")) return -1;
+        if (TableExists("sqlite_stat1")) {
+            final DBAsyncTask task = new DBAsyncTask();
+            task.executeAndWait(new DBRunnable() {
+                @Override
+                public void run() {
+                    try {
+                        // the first number of every stat row for a table is its approximate row count
+                        String stat = queryString("SELECT stat FROM sqlite_stat1 WHERE tbl = ? ORDER BY idx IS NOT NULL LIMIT 1", new String[] {table});
+                        if (stat != null)
+                            task.count = Integer.parseInt(stat.split(" ")[0]);
+                    } catch (Exception e) {
+                        debugException(e);
+                    }
+                }
+            });
+            if (task.count != -1) return task.count;
+        }
+        return TableRowCount(table);
+    }
+    
+    /**
+    * Enables a maintained row counter for a table.
+    */
+    @SimpleFunction(description = "Installs triggers that keep a count of the rows in a table, so TableRowCount answers instantly instead of counting every row. "
+                                + "The counts are kept in the " + ROW_COUNTS_TABLE + " table. "
+                                + "Calling this again for the same table recounts the rows. "
+                                + "Rows deleted by REPLACE fire the triggers because OpenDatabase turns on recursive triggers. "
+                                + "Returns true if the counter was enabled, false if an error occurs or the database is not open."
+                    )
+    public boolean EnableRowCounter(final String table) {
+        if (! checkDB("EnableRowCounter")) return false;
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                db.beginTransaction();
+                try {
+                    String name = quoteLiteral(table);
+                    db.execSQL("CREATE TABLE IF NOT EXISTS " + ROW_COUNTS_TABLE + " (tbl TEXT PRIMARY KEY, n INTEGER NOT NULL)");
+                    db.execSQL("CREATE TRIGGER IF NOT EXISTS " + quoteName(ROW_COUNTS_TABLE + "_" + table + "_insert")
+                             + " AFTER INSERT ON " + quoteName(table)
+                             + " BEGIN UPDATE " + ROW_COUNTS_TABLE + " SET n = n + 1 WHERE tbl = " + name + "; END");
+                    db.execSQL("CREATE TRIGGER IF NOT EXISTS " + quoteName(ROW_COUNTS_TABLE + "_" + table + "_delete")
+                             + " AFTER DELETE ON " + quoteName(table)
+                             + " BEGIN UPDATE " + ROW_COUNTS_TABLE + " SET n = n - 1 WHERE tbl = " + name + "; END");
+                    db.execSQL("INSERT OR REPLACE INTO " + ROW_COUNTS_TABLE + " (tbl, n) SELECT " + name + ", count(1) FROM " + quoteName(table));
+                    db.setTransactionSuccessful();
+                    task.success = true;
+                } catch (SQLException e) {
+                    debugException(e);
+                } finally {
+                    db.endTransaction();
+                    if (! task.success)
+                        noteRollback();
+                    invalidateSchema();
+                }
+            }
+        });
+        if (task.success)
+            debug("Row counter enabled: " + table);
+        return task.success;
+    }
+    
+    /**
+    * Disables the maintained row counter for a table.
+    */
+    @SimpleFunction(description = "Removes the triggers and count installed by EnableRowCounter for a table. "
+                                + "Returns true if the counter was removed or didn't exist, false if an error occurs or the database is not open."
+                    )
+    public boolean DisableRowCounter(final String table) {
+        if (! checkDB("DisableRowCounter")) return false;
+        final boolean counted = TableExists(ROW_COUNTS_TABLE);
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                db.beginTransaction();
+                try {
+                    db.execSQL("DROP TRIGGER IF EXISTS " + quoteName(ROW_COUNTS_TABLE + "_" + table + "_insert"));
+                    db.execSQL("DROP TRIGGER IF EXISTS " + quoteName(ROW_COUNTS_TABLE + "_" + table + "_delete"));
+                    if (counted)
+                        db.execSQL("DELETE FROM " + ROW_COUNTS_TABLE + " WHERE tbl = ?", new Object[] {table});
+                    db.setTransactionSuccessful();
+                    task.success = true;
+                } catch (SQLException e) {
+                    debugException(e);
+                } finally {
+                    db.endTransaction();
+                    if (! task.success)
+                        noteRollback();
+                    invalidateSchema();
+                }
+            }
+        });
+        if (task.success)
+            debug("Row counter disabled: " + table);
+        return task.success;
+    }
+
+    //========================================================
+    // Summary table methods
+    //
+    
+    /**
+    * Creates a summary table that's kept up to date as a table changes.
+    * @param summary: The name of the summary table
+    * @param table: The table summarized
+    * @param groupColumns: The list of columns the rows are grouped by
+    * @param sumColumns: The list of columns summed for each group
+    * @return true if the summary was created, false otherwise
+    */
+    @SimpleFunction(description = "Creates a summary table holding the same results as "
+                                + "SELECT groupColumns, count(1), sum(sumColumns) FROM table GROUP BY groupColumns, "
+                                + "and installs triggers that update the summary as rows are inserted, updated and deleted, "
+                                + "so reading totals takes time proportional to the number of groups instead of the number of rows. "
+                                + "The summary has the group columns, a count column, and a column named sum_ followed by the column name for each summed column. "
+                                + "Null values are summed as 0, and groups are removed when their last row is deleted. "
+                                + "Rows deleted by REPLACE fire the triggers because OpenDatabase turns on recursive triggers. "
+                                + "Returns true if the summary was created, false if an error occurs, the summary table already exists, or the database is not open."
+                    )
+    public boolean CreateSummary(final String summary, final String table, final YailList groupColumns, final YailList sumColumns) {
+        if (! checkDB("CreateSummary")) return false;
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                db.beginTransaction();
+                try {
+                    String[] groups = groupColumns.toStringArray();
+                    String[] sums = sumColumns.toStringArray();
+                    String s = quoteName(summary);
+                    String t = quoteName(table);
+                    
+                    StringBuilder columns = new StringBuilder();
+                    StringBuilder groupList = new StringBuilder();
+                    StringBuilder selected = new StringBuilder();
+                    for (String group : groups) {
+                        if (groupList.length() > 0) groupList.append(", ");
+                        groupList.append(quoteName(group));
+                        columns.append(quoteName(group)).append(", ");
+                    }
+                    selected.append(groupList).append((groups.length > 0) ? ", " : "").append("count(1)");
+                    columns.append("\"count\" INTEGER NOT NULL");
+                    for (String sum : sums) {
+                        columns.append(", ").append(quoteName("sum_" + sum)).append(" NOT NULL");
+                        selected.append(", coalesce(sum(").append(quoteName(sum)).append("), 0)");
+                    }
+                    db.execSQL("CREATE TABLE " + s + " (" + columns + ")");
+                    if (groups.length > 0)
+                        db.execSQL("CREATE INDEX " + quoteName(summary + "_groups") + " ON " + s + " (" + groupList + ")");
+                    db.execSQL("INSERT INTO " + s + " SELECT " + selected + " FROM " + t + ((groups.length > 0) ? " GROUP BY " + groupList : ""));
+                    
+                    String add = summaryChange(summary, groups, sums, "new", "+");
+                    String subtract = summaryChange(summary, groups, sums, "old", "-");
+                    StringBuilder changed = new StringBuilder();
+                    for (String column : groups)
+                        changed.append((changed.length() > 0) ? ", " : "").append(quoteName(column));
+                    for (String column : sums)
+                        changed.append((changed.length() > 0) ? ", " : "").append(quoteName(column));
+                    db.execSQL("CREATE TRIGGER " + summaryTrigger(summary, "insert") + " AFTER INSERT ON " + t + " BEGIN " + add + " END");
+                    db.execSQL("CREATE TRIGGER " + summaryTrigger(summary, "delete") + " AFTER DELETE ON " + t + " BEGIN " + subtract + " END");
+                    if (changed.length() > 0)
+                        db.execSQL("CREATE TRIGGER " + summaryTrigger(summary, "update") + " AFTER UPDATE OF " + changed + " ON " + t
+                                 + " BEGIN " + subtract + " " + add + " END");
+                    db.execSQL("CREATE TABLE IF NOT EXISTS " + SUMMARIES_TABLE + " (name TEXT PRIMARY KEY, tbl TEXT NOT NULL)");
+                    db.execSQL("INSERT OR REPLACE INTO " + SUMMARIES_TABLE + " (name, tbl) VALUES (?, ?)", new Object[] {summary, table});
+                    db.setTransactionSuccessful();
+                    task.success = true;
+                } catch (SQLException e) {
+                    debugException(e);
+                } finally {
+                    db.endTransaction();
+                    if (! task.success)
+                        noteRollback();
+                    invalidateSchema();
+                }
+            }
+        });
+        if (task.success)
+            debug("Summary created: " + summary);
+        return task.success;
+    }
+    
+    /**
+    * Drops a summary table.
+    * @param summary: The name of the summary table
+    * @return true if the summary was dropped or didn't exist, false otherwise
+    */
+    @SimpleFunction(description = "Drops a summary table created by CreateSummary and its triggers. "
+                                + "Returns true if the summary was dropped or didn't exist, false if an error occurs or the database is not open."
+                    )
+    public boolean DropSummary(final String summary) {
+        if (! checkDB("DropSummary")) return false;
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                db.beginTransaction();
+                try {
+                    if (hasTable(SUMMARIES_TABLE) && (queryString("SELECT 1 FROM " + SUMMARIES_TABLE + " WHERE name = ?", new String[] {summary}) != null)) {
+                        for (String op : new String[] {"insert", "update", "delete"})
+                            db.execSQL("DROP TRIGGER IF EXISTS " + summaryTrigger(summary, op));
+                        db.execSQL("DROP TABLE IF EXISTS " + quoteName(summary));
+                        db.execSQL("DELETE FROM " + SUMMARIES_TABLE + " WHERE name = ?", new Object[] {summary});
+                    }
+                    db.setTransactionSuccessful();
+                    task.success = true;
+                } catch (SQLException e) {
+                    debugException(e);
+                } finally {
+                    db.endTransaction();
+                    if (! task.success)
+                        noteRollback();
+                    invalidateSchema();
+                }
+            }
+        });
+        if (task.success)
+            debug("Summary dropped: " + summary);
+        return task.success;
+    }
+    
+    /**
+    * Returns the quoted name of one of the triggers of a summary table.
+    */
+    private static String summaryTrigger(final String summary, final String op) {
+        return quoteName(SUMMARIES_TABLE + "_" + summary + "_" + op);
+    }
+    
+    /**
+    * Returns the trigger statements that add a row to its group of a summary table, or subtract it.
+    * Groups are matched with IS so null group values form a group of their own.
+    * @param row: The trigger row, new or old
+    * @param sign: + to add the row, - to subtract it
+    */
+    private static String summaryChange(final String summary, final String[] groups, final String[] sums, final String row, final String sign) {
+        String s = quoteName(summary);
+        StringBuilder where = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for (String group : groups) {
+            where.append((where.length() > 0) ? " AND " : " WHERE ").append(quoteName(group)).append(" IS ").append(row).append(".").append(quoteName(group));
+            values.append(row).append(".").append(quoteName(group)).append(", ");
+        }
+        StringBuilder set = new StringBuilder("\"count\" = \"count\" " + sign + " 1");
+        for (String sum : sums) {
+            String column = quoteName("sum_" + sum);
+            set.append(", ").append(column).append(" = ").append(column).append(" ").append(sign)
+               .append(" coalesce(").append(row).append(".").append(quoteName(sum)).append(", 0)");
+        }
+        if (groups.length == 0)
+            return "UPDATE " + s + " SET " + set + ";";
+        StringBuilder sql = new StringBuilder();
+        if (sign.equals("+"))
+            sql.append("INSERT INTO ").append(s).append(" SELECT ").append(values).append("0").append(repeat(", 0", sums.length))
+               .append(" WHERE NOT EXISTS (SELECT 1 FROM ").append(s).append(where).append("); ");
+        sql.append("UPDATE ").append(s).append(" SET ").append(set).append(where).append(";");
+        if (sign.equals("-"))
+            sql.append(" DELETE FROM ").append(s).append(where).append(" AND \"count\" <= 0;");
+        return sql.toString();
+    }
+    
+    /**
+    * Returns a string repeated a number of times.
+    */
+    private static String repeat(final String s, final int count) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < count; i++)
+            b.append(s);
+        return b.toString();
+    }
+
+    //========================================================
+    // Change notification methods
+    //
+    
+    /**
+    * Starts change notifications for a table.
+    */
+    @SimpleFunction(description = "Starts firing the TableChanged event when rows in the table are inserted, replaced, updated or deleted. "
+                                + "Changes made inside a transaction are reported once, after it's committed, and never if it's rolled back. "
+                                + "Only changes made through this extension are reported; changes made by triggers are not. "
+                                + "Execute and ExecuteFile report INSERT, REPLACE, UPDATE and DELETE statements on a named table, "
+                                +   "and a ROLLBACK statement they run drops the changes of the transaction it ends. "
+                                + "Table names are matched without regard to case, and the event reports the name passed to this method."
+                    )
+    public void ObserveTable(String table) {
+        observedTables.put(table.toLowerCase(), table);
+    }
+    
+    /**
+    * Stops change notifications for a table.
+    */
+    @SimpleFunction(description = "Stops firing the TableChanged event for the table.")
+    public void StopObservingTable(String table) {
+        observedTables.remove(table.toLowerCase());
+    }
+    
+    /**
+    * Registers a live query.
+    * @param tag: The identifier of the live query in the LiveQueryChanged event
+    * @param sql: The SQL SELECT statement
+    * @param bindParams: The list of parameter values to bind
+    * @param keyColumn: The name of the result column that uniquely identifies each row
+    * @param tables: The tables the query depends on, or an empty list for any table
+    */
+    @SimpleFunction(description = "Registers a SELECT statement that's run again after changes to the tables it depends on are committed. "
+                                + "Instead of the whole result, the LiveQueryChanged event reports only the rows that were inserted, updated or removed since the last run, "
+                                + "matched by the value of keyColumn, which must be one of the selected columns and unique in the results. "
+                                + "The query runs once right away and LiveQueryChanged reports every row as inserted. "
+                                + "The tables list names the tables the query reads; an empty list means the query runs again after a change to any table. "
+                                + "Only changes that TableChanged would report cause the query to run again. "
+                                + "Registering a tag again replaces the previous query."
+                    )
+    public void RegisterLiveQuery(final String tag, final String sql, final YailList bindParams, final String keyColumn, final YailList tables) {
+        LiveQuery query = new LiveQuery(tag, sql, (bindParams == null) ? null : bindParams.toStringArray(), keyColumn, tables.toStringArray());
+        synchronized (liveQueries) {
+            liveQueries.put(tag, query);
+        }
+        if (db != null)
+            query.schedule();
+    }
+    
+    /**
+    * Unregisters a live query.
+    * @param tag: The identifier of the live query
+    */
+    @SimpleFunction(description = "Stops running the live query registered with the tag.")
+    public void UnregisterLiveQuery(final String tag) {
+        synchronized (liveQueries) {
+            liveQueries.remove(tag);
+        }
+    }
+    
+    /**
+    * Returns a copy of the registered live queries.
+    */
+    private ArrayList<LiveQuery> liveQueries() {
+        synchronized (liveQueries) {
+            return new ArrayList<LiveQuery>(liveQueries.values());
+        }
+    }
+    
+    /**
+    * Returns true if a live query depends on the table.
+    */
+    private boolean isLiveTable(final String table) {
+        String name = table.toLowerCase();
+        synchronized (liveQueries) {
+            for (LiveQuery query : liveQueries.values())
+                if (query.tables.isEmpty() || query.tables.contains(name)) return true;
+        }
+        return false;
+    }
+    
+    /**
+    * A registered live query and the snapshot of its last results, keyed by the key column.
+    */
+    private class LiveQuery {
+    
+        public final String tag;
+        public final String sql;
+        public final String[] args;
+        public final String keyColumn;
+        public final HashSet<String> tables = new HashSet<String>();       // lower case
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private LinkedHashMap<String, Object[]> snapshot = null;
+        
+        public LiveQuery(String tag, String sql, String[] args, String keyColumn, String[] tables) {
+            this.tag = tag;
+            this.sql = sql;
+            this.args = args;
+            this.keyColumn = keyColumn;
+            for (String table : tables)
+                this.tables.add(table.toLowerCase());
+        }
+        
+        public boolean dependsOn(Set<String> changed) {
+            if (tables.isEmpty()) return true;
+            for (String table : changed)
+                if (tables.contains(table)) return true;
+            return false;
+        }
+        
+        /**
+        * Queues the query to run on the database thread, unless it's already queued.
+        */
+        public void schedule() {
+            if (! scheduled.compareAndSet(false, true)) return;
+            new DBAsyncTask().queue(new DBRunnable() {
+                @Override
+                public void run() {
+                    scheduled.set(false);
+                    synchronized (liveQueries) {
+                        if (liveQueries.get(tag) != LiveQuery.this) return;
+                    }
+                    try {
+                        evaluate();
+                    } catch (SQLException e) {
+                        debugException(e);
+                    }
+                }
+            });
+        }
+        
+        /**
+        * Runs the query and fires LiveQueryChanged with the difference from the last run.
+        * Must run on the database thread.
+        */
+        private void evaluate() {
+            if (db == null) return;
+            LinkedHashMap<String, Object[]> rows = new LinkedHashMap<String, Object[]>();
+            final ArrayList inserted = new ArrayList();
+            final ArrayList updated = new ArrayList();
+            final ArrayList removed = new ArrayList();
+            Cursor c = db.rawQuery(sql, args);
+            try {
+                String[] columnNames = c.getColumnNames();
+                int columnCount = c.getColumnCount();
+                int keyIndex = c.getColumnIndex(keyColumn);
+                if (keyIndex == -1)
+                    throw new SQLException("Live query " + tag + " does not select key column " + keyColumn);
+                while (c.moveToNext()) {
+                    Object[] values = new Object[columnCount];
+                    for (int i = 0; i < columnCount; i++)
+                        values[i] = columnValue(c, i);
+                    String key = c.getString(keyIndex);
+                    rows.put(key, values);
+                    Object[] old = (snapshot == null) ? null : snapshot.get(key);
+                    if (old == null)
+                        inserted.add(formatRow(columnNames, values));
+                    else if (! Arrays.equals(old, values))
+                        updated.add(formatRow(columnNames, values));
+                }
+                if (snapshot != null)
+                    for (String key : snapshot.keySet())
+                        if (! rows.containsKey(key))
+                            removed.add(formatRow(columnNames, snapshot.get(key)));
+            } finally {
+                c.close();
+            }
+            boolean first = snapshot == null;
+            snapshot = rows;
+            if ((! first) && inserted.isEmpty() && updated.isEmpty() && removed.isEmpty()) return;
+            form.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    LiveQueryChanged(tag, YailList.makeList(inserted), YailList.makeList(updated), YailList.makeList(removed));
+                }
+            });
+        }
+        
+    }
+    
+    //========================================================
+    // Write buffer methods
+    //
+    
+    /**
+    * Starts buffering rows inserted into a table.
+    * @param table: The table
+    * @param columns: The list of columns BufferedInsert provides values for
+    * @param maxRows: The number of buffered rows that causes a flush
+    * @param maxDelay: The most milliseconds a row waits before it's flushed, or 0 for no time limit
+    * @param flushOnRead: Whether SelectSQL and Select flush the buffer before reading the table
+    * @return true if the buffer was created, false otherwise
+    */
+    @SimpleFunction(description = "Starts a write buffer for a table, for apps that insert many small rows quickly, like sensor readings. "
+                                + "Rows added with BufferedInsert are kept in memory, one array of numbers or text per column, "
+                                + "and written in a single transaction with a prepared statement once maxRows rows are waiting, "
+                                + "the oldest row has waited maxDelay milliseconds, the app is paused, or the database is closed. "
+                                + "Rows waiting in the buffer are lost if the app is killed. "
+                                + "Rows that can't be written are reported by WriteBufferFailed and the other rows are still written. "
+                                + "If flushOnRead is true, SelectSQL statements that mention the table, and Select calls on it, write the waiting rows first "
+                                + "so their results include them. "
+                                + "Enabling a buffer for a table that already has one flushes and replaces it. "
+                                + "Returns true if the buffer was created, false if the table doesn't exist or the database is not open."
+                    )
+    public boolean EnableWriteBuffer(final String table, final YailList columns, final int maxRows, final int maxDelay, final boolean flushOnRead) {
+        if (! checkDB("EnableWriteBuffer")) return false;
+        TableInfo info = tableInfo(table);
+        if (info == null) {
+            debugException(new Exception("No such table: " + table));
+            return false;
+        }
+        String[] names = columns.toStringArray();
+        int[] types = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            String type = info.columnTypes.get(names[i].toLowerCase());
+            if (type == null) {
+                debugException(new Exception("No such column: " + table + "." + names[i]));
+                return false;
+            }
+            types[i] = BufferColumn.affinity(type);
+        }
+        WriteBuffer old;
+        synchronized (writeBuffers) {
+            old = writeBuffers.put(table, new WriteBuffer(table, names, types, Math.max(1, maxRows), Math.max(0, maxDelay), flushOnRead));
+        }
+        if (old != null)
+            old.queueFlush();
+        debug("Write buffer enabled: " + table);
+        return true;
+    }
+    
+    /**
+    * Stops buffering rows inserted into a table.
+    * @param table: The table
+    * @return the number of rows flushed, or -1 if an error occurred
+    */
+    @SimpleFunction(description = "Writes the rows waiting in the write buffer for a table and removes the buffer. "
+                                + "Returns the number of rows written, or -1 if an error occurs, the table doesn't have a buffer, or the database is not open."
+                    )
+    public int DisableWriteBuffer(final String table) {
+        if (! checkDB("DisableWriteBuffer")) return -1;
+        final WriteBuffer buffer;
+        synchronized (writeBuffers) {
+            buffer = writeBuffers.remove(table);
+        }
+        if (buffer == null) return -1;
+        int res = flushWriteBuffers(new WriteBuffer[] {buffer});
+        debug("Write buffer disabled: " + table);
+        return res;
+    }
+    
+    /**
+    * Adds a row to the write buffer of a table.
+    * @param table: The table
+    * @param values: The list of column values, in the order of the buffer's columns
+    * @return true if the row was added, false otherwise
+    */
+    @SimpleFunction(description = "Adds a row to the write buffer of a table. "
+                                + "The values must be in the order of the columns passed to EnableWriteBuffer. "
+                                + "Returns right away without waiting for the database. "
+                                + "Returns true if the row was added, false if the table doesn't have a buffer or the number of values is wrong."
+                    )
+    public boolean BufferedInsert(final String table, final YailList values) {
+        WriteBuffer buffer;
+        synchronized (writeBuffers) {
+            buffer = writeBuffers.get(table);
+        }
+        if (buffer == null) {
+            debugException(new Exception("No write buffer for table: " + table));
+            return false;
+        }
+        String[] row = values.toStringArray();
+        if (row.length != buffer.columns.length) {
+            debugException(new Exception("BufferedInsert: expected " + buffer.columns.length + " values, got " + row.length));
+            return false;
+        }
+        buffer.add(row);
+        return true;
+    }
+    
+    /**
+    * Writes the rows waiting in every write buffer.
+    * @return the number of rows written, or -1 if an error occurred
+    */
+    @SimpleFunction(description = "Writes the rows waiting in every write buffer. "
+                                + "Returns the number of rows written, or -1 if an error occurs or the database is not open."
+                    )
+    public int FlushWriteBuffers() {
+        if (! checkDB("FlushWriteBuffers")) return -1;
+        int res = flushWriteBuffers(writeBuffers());
+        debug("FlushWriteBuffers: " + res + " rows");
+        return res;
+    }
+    
+    /**
+    * Returns a copy of the write buffers.
+    */
+    private WriteBuffer[] writeBuffers() {
+        synchronized (writeBuffers) {
+            return writeBuffers.values().toArray(new WriteBuffer[0]);
+        }
+    }
+    
+    /**
+    * Writes the rows waiting in the buffers in a database task.
+    * @return the number of rows written, or -1 if an error occurred
+    */
+    private int flushWriteBuffers(final WriteBuffer[] buffers) {
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                task.count = 0;
+                try {
+                    for (WriteBuffer buffer : buffers)
+                        task.count += buffer.flush();
+                } catch (SQLException e) {
+                    task.count = -1;
+                    debugException(e);
+                }
+            }
+        });
+        return task.count;
+    }
+    
+    /**
+    * Writes the rows waiting in the buffers of the tables a SELECT statement reads, for buffers that flush on read.
+    * Must run on the database thread.
+    */
+    private void flushForRead(final String sql) {
+        for (WriteBuffer buffer : writeBuffers())
+            if (buffer.flushOnRead && buffer.pattern.matcher(sql).find())
+                buffer.flush();
+    }
+    
+    /**
+    * The values of one column of a write buffer, kept in a primitive array when the column has numeric affinity.
+    * A value that isn't a number moves the column to text.
+    */
+    private static class BufferColumn {
+    
+        public static final int INTEGER = 0;
+        public static final int REAL = 1;
+        public static final int TEXT = 2;
+        
+        private int type;
+        private long[] longs = null;
+        private double[] doubles = null;
+        private String[] strings = null;
+        
+        public BufferColumn(int type, int capacity) {
+            this.type = type;
+            if (type == INTEGER)
+                longs = new long[capacity];
+            else if (type == REAL)
+                doubles = new double[capacity];
+            else
+                strings = new String[capacity];
+        }
+        
+        /**
+        * Returns the storage type for a declared column type, following SQLite's affinity rules.
+        */
+        public static int affinity(String declared) {
+            String type = declared.toUpperCase();
+            if (type.contains("INT")) return INTEGER;
+            if (type.contains("CHAR") || type.contains("CLOB") || type.contains("TEXT") || type.contains("BLOB") || (type.length() == 0)) return TEXT;
+            return REAL;
+        }
+        
+        public void set(int index, String value) {
+            if (index >= capacity())
+                grow(Math.max(index + 1, capacity() * 2));
+            try {
+                if (type == INTEGER) {
+                    longs[index] = Long.parseLong(value);
+                    return;
+                }
+                if (type == REAL) {
+                    doubles[index] = Double.parseDouble(value);
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                toText(index);
+            }
+            strings[index] = value;
+        }
+        
+        public Object get(int index) {
+            if (type == INTEGER) return longs[index];
+            if (type == REAL) return doubles[index];
+            return strings[index];
+        }
+        
+        public void bind(SQLiteStatement statement, int column, int index) {
+            if (type == INTEGER)
+                statement.bindLong(column, longs[index]);
+            else if (type == REAL)
+                statement.bindDouble(column, doubles[index]);
+            else if (strings[index] == null)
+                statement.bindNull(column);
+            else
+                statement.bindString(column, strings[index]);
+        }
+        
+        private int capacity() {
+            return (type == INTEGER) ? longs.length : (type == REAL) ? doubles.length : strings.length;
+        }
+        
+        private void grow(int capacity) {
+            if (type == INTEGER)
+                longs = Arrays.copyOf(longs, capacity);
+            else if (type == REAL)
+                doubles = Arrays.copyOf(doubles, capacity);
+            else
+                strings = Arrays.copyOf(strings, capacity);
+        }
+        
+        /**
+        * Moves the values before index to text.
+        */
+        private void toText(int index) {
+            strings = new String[capacity()];
+            for (int i = 0; i < index; i++)
+                strings[i] = (type == INTEGER) ? Long.toString(longs[i]) : Double.toString(doubles[i]);
+            longs = null;
+            doubles = null;
+            type = TEXT;
+        }
+        
+    }
+    
+    /**
+    * The rows waiting to be inserted into a table.
+    * Rows are added on any thread and flushed on the database thread; a flush takes the current columns and
+    * starts new ones, so rows can be added while it runs.
+    */
+    private class WriteBuffer {
+    
+        public final String table;
+        public final String[] columns;
+        public final boolean flushOnRead;
+        public final Pattern pattern;
+        private final int[] types;
+        private final int maxRows;
+        private final int maxDelay;
+        private final String sql;
+        private BufferColumn[] data;
+        private int size = 0;
+        private boolean flushQueued = false;
+        private final Runnable timer = new Runnable() {
+            @Override
+            public void run() {
+                queueFlush();
+            }
+        };
+        
+        public WriteBuffer(String table, String[] columns, int[] types, int maxRows, int maxDelay, boolean flushOnRead) {
+            this.table = table;
+            this.columns = columns;
+            this.types = types;
+            this.maxRows = maxRows;
+            this.maxDelay = maxDelay;
+            this.flushOnRead = flushOnRead;
+            pattern = Pattern.compile("(?<![\\w$])" + Pattern.quote(table) + "(?![\\w$])", Pattern.CASE_INSENSITIVE);
+            sql = insertStatement(table, columns);
+            data = newColumns();
+        }
+        
+        private BufferColumn[] newColumns() {
+            BufferColumn[] columns = new BufferColumn[types.length];
+            for (int i = 0; i < types.length; i++)
+                columns[i] = new BufferColumn(types[i], maxRows);
+            return columns;
+        }
+        
+        public void add(String[] row) {
+            boolean full;
+            synchronized (this) {
+                for (int i = 0; i < row.length; i++)
+                    data[i].set(size, row[i]);
+                size++;
+                if ((size == 1) && (maxDelay > 0))
+                    handler.postDelayed(timer, maxDelay);
+                full = size >= maxRows;
+            }
+            if (full)
+                queueFlush();
+        }
+        
+        /**
+        * Queues a flush on the database thread, unless one is already queued.
+        */
+        public void queueFlush() {
+            synchronized (this) {
+                if (flushQueued || (size == 0)) return;
+                flushQueued = true;
+            }
+            new DBAsyncTask().queue(new DBRunnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (SQLException e) {
+                        debugException(e);
+                    }
+                }
+            });
+        }
+        
+        /**
+        * Inserts the waiting rows in a single transaction.
+        * Must run on the database thread.
+        * @return the number of rows inserted
+        */
+        public int flush() {
+            BufferColumn[] rows;
+            int count;
+            synchronized (this) {
+                flushQueued = false;
+                if ((size == 0) || (db == null)) return 0;
+                rows = data;
+                count = size;
+                data = newColumns();
+                size = 0;
+                handler.removeCallbacks(timer);
+            }
+            SQLiteStatement statement;
+            try {
+                statement = db.compileStatement(sql);
+            } catch (SQLException e) {
+                failed(rows, 0, count, null, e);          // probably dropped
+                return 0;
+            }
+            
+            // a failed insert only undoes itself, so the other rows are kept and the failed ones reported
+            ArrayList<Object> failedRows = new ArrayList<Object>();
+            SQLException error = null;
+            RuntimeException failure = null;
+            int inserted = 0;
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < count; i++) {
+                    try {
+                        for (int c = 0; c < rows.length; c++)
+                            rows[c].bind(statement, c + 1, i);
+                        statement.executeInsert();
+                        inserted++;
+                    } catch (SQLException e) {
+                        failedRows.add(row(rows, i));
+                        if (error == null) error = e;
+                    }
+                }
+                noteWrite(table, "insert", inserted);
+                db.setTransactionSuccessful();
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                statement.close();
+            }
+            try {
+                db.endTransaction();
+            } catch (SQLException e) {
+                if (failure == null) failure = e;
+            }
+            if (failure != null) {
+                noteRollback();
+                failed(rows, 0, count, null, failure);    // nothing was committed
+                return 0;
+            }
+            if (! failedRows.isEmpty())
+                failed(rows, 0, 0, failedRows, error);
+            return inserted;
+        }
+        
+        /**
+        * Returns the values of a buffered row.
+        */
+        private YailList row(BufferColumn[] rows, int index) {
+            Object[] values = new Object[rows.length];
+            for (int c = 0; c < rows.length; c++)
+                values[c] = rows[c].get(index);
+            return YailList.makeList(values);
+        }
+        
+        /**
+        * Reports rows that couldn't be written, either the list given or the rows from start to end.
+        */
+        private void failed(BufferColumn[] rows, int start, int end, ArrayList<Object> failedRows, Exception e) {
+            if (failedRows == null) {
+                failedRows = new ArrayList<Object>();
+                for (int i = start; i < end; i++)
+                    failedRows.add(row(rows, i));
+            }
+            debugException(e);
+            final YailList list = YailList.makeList(failedRows);
+            final String message = e.getMessage();
+            form.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    WriteBufferFailed(table, list, message);
+                }
+            });
+        }
+        
+    }
+    
+    //========================================================
+    // Full text search methods
+    //
+    
+    /**
+    * Creates a full text search index for a table.
+    * @param table: The table
+    * @param columns: The list of text columns to index
+    * @return true if the index was created, false otherwise
+    */
+    @SimpleFunction(description = "Creates a full text search index over the listed columns of a table, for use with Search. "
+                                + "The index is an FTS5 table, or FTS4 if the device doesn't have FTS5, named after the table with a _search suffix. "
+                                + "It reads the text from the table itself instead of keeping a second copy, and triggers keep it up to date as rows change. "
+                                + "The table must have a rowid. "
+                                + "If the table already has a search index, it's dropped and built again. "
+                                + "The index is built in a single step, so other database calls wait until it's done. "
+                                + "Returns true if the index was created, false if an error occurs or the database is not open."
+                    )
+    public boolean CreateSearchIndex(final String table, final YailList columns) {
+        if (! checkDB("CreateSearchIndex")) return false;
+        final SearchIndexBuild build = new SearchIndexBuild(null, table, columns.toStringArray());
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                try {
+                    while (! build.step(Long.MAX_VALUE));
+                    task.success = true;
+                } catch (SQLException e) {
+                    debugException(e);
+                }
+            }
+        });
+        if (task.success)
+            debug("Search index created: " + table);
+        return task.success;
+    }
+    
+    /**
+    * Creates a full text search index for a table, asynchronously, a few rows at a time.
+    * @param tag: The identifier for the result of this operation
+    * @param table: The table
+    * @param columns: The list of text columns to index
+    * @param rowsPerStep: The number of rows to index in each step
+    */
+    @SimpleFunction(description = "Creates a full text search index for a table, asynchronously. "
+                                + "The index and its triggers are created first, then existing rows are indexed rowsPerStep rows at a time "
+                                + "and other database calls are allowed to run between steps. "
+                                + "Search only finds the rows that have been indexed so far. "
+                                + "Steps wait while a transaction is open. "
+                                + "The tag identifies the progress of this call in the Progress event and the result in the AfterCreateSearchIndex event. "
+                                + "See CreateSearchIndex for more information."
+                    )
+    public void CreateSearchIndexAsync(final String tag, final String table, final YailList columns, final int rowsPerStep) {
+        AsynchUtil.runAsynchronously(new Runnable() {
+            @Override
+            public void run() {
+                boolean res = false;
+                if (checkDB("CreateSearchIndexAsync"))
+                    res = runSearchIndexBuild(new SearchIndexBuild(tag, table, columns.toStringArray()), Math.max(1, rowsPerStep));
+                if (res)
+                    debug("Search index created: " + table);
+                final boolean result = res;
+                form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        AfterCreateSearchIndex(tag, result);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+    * Drops the full text search index of a table.
+    * @param table: The table
+    * @return true if the index was dropped or didn't exist, false otherwise
+    */
+    @SimpleFunction(description = "Drops the search index and triggers created by CreateSearchIndex for a table. "
+                                + "Returns true if the index was dropped or didn't exist, false if an error occurs or the database is not open."
+                    )
+    public boolean DropSearchIndex(final String table) {
+        if (! checkDB("DropSearchIndex")) return false;
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                db.beginTransaction();
+                try {
+                    dropSearchIndex(table);
+                    db.setTransactionSuccessful();
+                    task.success = true;
+                } catch (SQLException e) {
+                    debugException(e);
+                } finally {
+                    db.endTransaction();
+                    if (! task.success)
+                        noteRollback();
+                    invalidateSchema();
+                }
+            }
+        });
+        if (task.success)
+            debug("Search index dropped: " + table);
+        return task.success;
+    }
+    
+    /**
+    * Searches the full text search index of a table.
+    * @param index: The table the index was created for
+    * @param query: The full text query
+    * @param limit: The maximum number of results, or 0 for all results
+    * @return the list of result rows
+    */
+    @SimpleFunction(description = "Searches the full text search index created for a table by CreateSearchIndex and returns a list of records, best matches first. "
+                                + "The query uses the FTS query syntax, for example: apple AND (pie OR tart), \"exact phrase\", or straw*. "
+                                + "Each record has the rowid of the matching row in the table, a snippet of the matching text with the matched terms in <b> and </b>, "
+                                + "and a rank, where lower is better. "
+                                + "FTS5 indexes rank with bm25; FTS4 indexes rank by the number of matched terms. "
+                                + "Records are formatted like the results of SelectSQL. "
+                                + "If limit is 0, all matching records are returned. "
+                                + "If the database is not open, an empty list is returned."
+                    )
+    public YailList Search(final String index, final String query, final int limit) {
+        if (! checkDB("Search")) return YailList.makeEmptyList();
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                try {
+                    String fts = searchIndexVersion(index);
+                    if (fts == null)
+                        throw new SQLException("No search index for table " + index);
+                    String name = quoteName(index + "_search");
+                    String sql;
+                    if (fts.equals("5"))
+                        sql = "SELECT rowid, snippet(" + name + ", -1, '<b>', '</b>', '...', " + SEARCH_SNIPPET_TOKENS + ") AS snippet, rank"
+                            + " FROM " + name + " WHERE " + name + " MATCH ? ORDER BY rank";
+                    else
+                        sql = "SELECT docid AS rowid, snippet(" + name + ", '<b>', '</b>', '...', -1, " + SEARCH_SNIPPET_TOKENS + ") AS snippet,"
+                            + " (length(replace(offsets(" + name + "), ' ', '')) - length(offsets(" + name + ")) - 1) / 4 AS rank"
+                            + " FROM " + name + " WHERE " + name + " MATCH ? ORDER BY rank";
+                    if (limit > 0)
+                        sql += " LIMIT " + limit;
+                    Cursor cursor = db.rawQuery(sql, new String[] {query});
+                    task.rows = cursorToList(cursor);
+                } catch (SQLException e) {
+                    debugException(e);
+                }
+            }
+        });
+        debug("Search: " + task.rows.size() + " rows");
+        return YailList.makeList(task.rows);
+    }
+    
+    /**
+    * Searches the full text search index of a table, asynchronously.
+    * @param tag: The identifier for the result of this operation
+    * @param index: The table the index was created for
+    * @param query: The full text query
+    * @param limit: The maximum number of results, or 0 for all results
+    */
+    @SimpleFunction(description = "Searches the full text search index of a table, asynchronously. "
+                                + "The tag identifies the result of this call in the AfterSelect event. "
+                                + "See Search for more information."
+                    )
+    public void SearchAsync(final String tag, final String index, final String query, final int limit) {
+        AsynchUtil.runAsynchronously(new Runnable() {
+            @Override
+            public void run() {
+                final YailList res = Search(index, query, limit);
+                form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        AfterSelect(tag, res.size(), res);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+    * Returns the FTS version of the search index of a table, or null if it doesn't have one.
+    * Must run on the database thread.
+    */
+    private String searchIndexVersion(final String table) {
+        if (! hasTable(SEARCH_INDEXES_TABLE)) return null;
+        return queryString("SELECT fts FROM " + SEARCH_INDEXES_TABLE + " WHERE tbl = ?", new String[] {table});
+    }
+    
+    /**
+    * Drops the search index of a table and its triggers, if it has one.
+    * Must run on the database thread, inside a transaction.
+    */
+    private void dropSearchIndex(final String table) {
+        for (String op : new String[] {"insert", "delete", "update", "before_delete", "before_update"})
+            db.execSQL("DROP TRIGGER IF EXISTS " + quoteName(SEARCH_INDEXES_TABLE + "_" + table + "_" + op));
+        db.execSQL("DROP TABLE IF EXISTS " + quoteName(table + "_search"));
+        if (hasTable(SEARCH_INDEXES_TABLE))
+            db.execSQL("DELETE FROM " + SEARCH_INDEXES_TABLE + " WHERE tbl = ?", new Object[] {table});
+    }
+    
+    /**
+    * Runs a search index build as a series of database tasks so other queued calls can run between steps.
+    * Must not be called on the database thread.
+    */
+    private boolean runSearchIndexBuild(final SearchIndexBuild build, final long rowsPerStep) {
+        while (true) {
+            final DBAsyncTask task = new DBAsyncTask();
+            task.executeAndWait(new DBRunnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (db == null)
+                            throw new Exception("Database closed while creating search index.");
+                        if (db.inTransaction()) {
+                            task.count = 0;             // wait for the transaction to end
+                            return;
+                        }
+                        task.success = build.step(rowsPerStep);
+                        task.count = 1;
+                    } catch (Exception e) {
+                        debugException(e);
+                    }
+                }
+            });
+            if (task.success) return true;
+            if (task.count == -1) return false;
+            if (task.count == 0) {
+                try {
+                    Thread.sleep(BACKUP_WAIT_DELAY);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        }
+    }
+    
+    /**
+    * Builds an external content full text search index for a table.
+    * The first step creates the index, its triggers and its row in the search indexes table, and later steps index
+    * existing rows in rowid order. The indexed column of that row holds the highest rowid indexed so far, and the
+    * triggers only touch the index for rows at or below it, so rows changed between steps are indexed exactly once.
+    */
+    private class SearchIndexBuild {
+    
+        private final String tag;
+        private final String table;
+        private final String[] columns;
+        private final String name;
+        private boolean fts5 = true;
+        private boolean started = false;
+        private long indexed = Long.MIN_VALUE;
+        private long done = 0;
+        private long total = 0;
+        
+        public SearchIndexBuild(String tag, String table, String[] columns) {
+            this.tag = tag;
+            this.table = table;
+            this.columns = columns;
+            name = quoteName(table + "_search");
+        }
+        
+        /**
+        * Returns the quoted name of one of the index triggers.
+        */
+        private String trigger(final String op) {
+            return quoteName(SEARCH_INDEXES_TABLE + "_" + table + "_" + op);
+        }
+        
+        /**
+        * Returns the quoted column names, each with the prefix.
+        */
+        private String columnList(final String prefix) {
+            StringBuilder list = new StringBuilder();
+            for (String column : columns) {
+                if (list.length() > 0) list.append(", ");
+                list.append(prefix).append(quoteName(column));
+            }
+            return list.toString();
+        }
+        
+        /**
+        * Creates the index, or indexes the next rows.
+        * Must run on the database thread.
+        * @return true when every row is indexed
+        */
+        public boolean step(long rows) {
+            boolean ok = false;
+            boolean finished = false;
+            db.beginTransaction();
+            try {
+                if (started)
+                    finished = indexRows(rows);
+                else
+                    begin();
+                db.setTransactionSuccessful();
+                ok = true;
+            } finally {
+                db.endTransaction();
+                if (! ok)
+                    noteRollback();
+                if (! started)
+                    invalidateSchema();
+            }
+            if (! started) {
+                started = true;
+                return false;
+            }
+            progress(tag, done, total);
+            return finished;
+        }
+        
+        /**
+        * Creates the index and its triggers.
+        */
+        private void begin() {
+            if (columns.length == 0)
+                throw new SQLException("No columns to index");
+            String t = quoteName(table);
+            String key = quoteLiteral(table);
+            String bound = "(SELECT indexed FROM " + SEARCH_INDEXES_TABLE + " WHERE tbl = " + key + ")";
+            dropSearchIndex(table);
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + SEARCH_INDEXES_TABLE + " (tbl TEXT PRIMARY KEY, fts TEXT NOT NULL, indexed INTEGER NOT NULL)");
+            try {
+                db.execSQL("CREATE VIRTUAL TABLE " + name + " USING fts5(" + columnList("") + ", content=" + quoteLiteral(table) + ", content_rowid='rowid')");
+            } catch (SQLException e) {
+                fts5 = false;
+                db.execSQL("CREATE VIRTUAL TABLE " + name + " USING fts4(content=" + quoteLiteral(table) + ", " + columnList("") + ")");
+            }
+            db.execSQL("INSERT INTO " + SEARCH_INDEXES_TABLE + " (tbl, fts, indexed) VALUES (?, ?, ?)",
+                       new Object[] {table, fts5 ? "5" : "4", indexed});
+            String insertNew = "INSERT INTO " + name + " (" + (fts5 ? "rowid" : "docid") + ", " + columnList("") + ")"
+                             + " SELECT new.rowid, " + columnList("new.") + " WHERE new.rowid <= " + bound + ";";
+            db.execSQL("CREATE TRIGGER " + trigger("insert") + " AFTER INSERT ON " + t + " BEGIN " + insertNew + " END");
+            if (fts5) {
+                // FTS5 removes a row's terms given the values that were indexed
+                String deleteOld = "INSERT INTO " + name + " (" + name + ", rowid, " + columnList("") + ")"
+                                 + " SELECT 'delete', old.rowid, " + columnList("old.") + " WHERE old.rowid <= " + bound + ";";
+                db.execSQL("CREATE TRIGGER " + trigger("delete") + " AFTER DELETE ON " + t + " BEGIN " + deleteOld + " END");
+                db.execSQL("CREATE TRIGGER " + trigger("update") + " AFTER UPDATE ON " + t + " BEGIN " + deleteOld + " " + insertNew + " END");
+            } else {
+                // FTS4 reads the values to remove from the table, so they must be removed before the table changes
+                String deleteOld = "DELETE FROM " + name + " WHERE docid = old.rowid AND old.rowid <= " + bound + ";";
+                db.execSQL("CREATE TRIGGER " + trigger("before_delete") + " BEFORE DELETE ON " + t + " BEGIN " + deleteOld + " END");
+                db.execSQL("CREATE TRIGGER " + trigger("before_update") + " BEFORE UPDATE ON " + t + " BEGIN " + deleteOld + " END");
+                db.execSQL("CREATE TRIGGER " + trigger("update") + " AFTER UPDATE ON " + t + " BEGIN " + insertNew + " END");
+            }
+            total = Long.parseLong(queryString("SELECT count(1) FROM " + t, null));
+        }
+        
+        /**
+        * Indexes the next rows.
+        * @return true when every row is indexed
+        */
+        private boolean indexRows(long rows) {
+            String t = quoteName(table);
+            String upper = queryString("SELECT max(rowid) FROM (SELECT rowid FROM " + t + " WHERE rowid > ? ORDER BY rowid LIMIT " + rows + ")",
+                                       new String[] {Long.toString(indexed)});
+            if (upper == null) {
+                db.execSQL("UPDATE " + SEARCH_INDEXES_TABLE + " SET indexed = ? WHERE tbl = ?", new Object[] {Long.MAX_VALUE, table});
+                return true;
+            }
+            long next = Long.parseLong(upper);
+            db.execSQL("INSERT INTO " + name + " (" + (fts5 ? "rowid" : "docid") + ", " + columnList("") + ")"
+                     + " SELECT rowid, " + columnList("") + " FROM " + t + " WHERE rowid > ? AND rowid <= ?",
+                       new Object[] {indexed, next});
+            done += Long.parseLong(queryString("SELECT changes()", null));
+            db.execSQL("UPDATE " + SEARCH_INDEXES_TABLE + " SET indexed = ? WHERE tbl = ?", new Object[] {next, table});
+            indexed = next;
+            return false;
+        }
+        
+    }
+    
+    //========================================================
+    // Spatial index methods
+    //
+    
+    /**
+    * Creates a spatial index for a table.
+    * @param table: The table
+    * @param xColumn: The column holding the x coordinate, like longitude
+    * @param yColumn: The column holding the y coordinate, like latitude
+    * @return true if the index was created, false otherwise
+    */
+    @SimpleFunction(description = "Creates an R*Tree spatial index over two coordinate columns of a table, for use with SelectInBox and SelectNearest. "
+                                + "The index is named after the table with a _rtree suffix, and triggers keep it up to date as rows change. "
+                                + "Rows with a null coordinate aren't indexed. "
+                                + "The table must have a rowid. "
+                                + "If the table already has a spatial index, it's dropped and built again. "
+                                + "Returns true if the index was created, false if an error occurs, the device's SQLite doesn't include R*Tree, or the database is not open."
+                    )
+    public boolean CreateSpatialIndex(final String table, final String xColumn, final String yColumn) {
+        if (! checkDB("CreateSpatialIndex")) return false;
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                db.beginTransaction();
+                try {
+                    String t = quoteName(table);
+                    String r = quoteName(table + "_rtree");
+                    String x = quoteName(xColumn);
+                    String y = quoteName(yColumn);
+                    dropSpatialIndex(table);
+                    db.execSQL("CREATE TABLE IF NOT EXISTS " + SPATIAL_INDEXES_TABLE + " (tbl TEXT PRIMARY KEY, x TEXT NOT NULL, y TEXT NOT NULL)");
+                    db.execSQL("INSERT INTO " + SPATIAL_INDEXES_TABLE + " (tbl, x, y) VALUES (?, ?, ?)", new Object[] {table, xColumn, yColumn});
+                    db.execSQL("CREATE VIRTUAL TABLE " + r + " USING rtree(id, minX, maxX, minY, maxY)");
+                    String insertNew = "INSERT INTO " + r + " SELECT new.rowid, new." + x + ", new." + x + ", new." + y + ", new." + y
+                                     + " WHERE new." + x + " IS NOT NULL AND new." + y + " IS NOT NULL;";
+                    String deleteOld = "DELETE FROM " + r + " WHERE id = old.rowid;";
+                    db.execSQL("CREATE TRIGGER " + spatialTrigger(table, "insert") + " AFTER INSERT ON " + t + " BEGIN " + insertNew + " END");
+                    db.execSQL("CREATE TRIGGER " + spatialTrigger(table, "update") + " AFTER UPDATE ON " + t
+                             + " BEGIN " + deleteOld + " " + insertNew + " END");
+                    db.execSQL("CREATE TRIGGER " + spatialTrigger(table, "delete") + " AFTER DELETE ON " + t + " BEGIN " + deleteOld + " END");
+                    db.execSQL("INSERT INTO " + r + " SELECT rowid, " + x + ", " + x + ", " + y + ", " + y + " FROM " + t
+                             + " WHERE " + x + " IS NOT NULL AND " + y + " IS NOT NULL");
+                    db.setTransactionSuccessful();
+                    task.success = true;
+                } catch (SQLException e) {
+                    debugException(e);
+                } finally {
+                    db.endTransaction();
+                    if (! task.success)
+                        noteRollback();
+                    invalidateSchema();
+                }
+            }
+        });
+        if (task.success)
+            debug("Spatial index created: " + table);
+        return task.success;
+    }
+    
+    /**
+    * Drops the spatial index of a table.
+    * @param table: The table
+    * @return true if the index was dropped or didn't exist, false otherwise
+    */
+    @SimpleFunction(description = "Drops the spatial index and triggers created by CreateSpatialIndex for a table. "
+                                + "Returns true if the index was dropped or didn't exist, false if an error occurs or the database is not open."
+                    )
+    public boolean DropSpatialIndex(final String table) {
+        if (! checkDB("DropSpatialIndex")) return false;
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                db.beginTransaction();
+                try {
+                    dropSpatialIndex(table);
+                    db.setTransactionSuccessful();
+                    task.success = true;
+                } catch (SQLException e) {
+                    debugException(e);
+                } finally {
+                    db.endTransaction();
+                    if (! task.success)
+                        noteRollback();
+                    invalidateSchema();
+                }
+            }
+        });
+        if (task.success)
+            debug("Spatial index dropped: " + table);
+        return task.success;
+    }
+    
+    /**
+    * Selects the rows of a table whose coordinates are inside a box.
+    * @param table: The table
+    * @param columns: List of column names to return
+    * @param minX: The smallest x coordinate
+    * @param minY: The smallest y coordinate
+    * @param maxX: The largest x coordinate
+    * @param maxY: The largest y coordinate
+    * @return the list of result rows
+    */
+    @SimpleFunction(description = "Returns a list of records for the rows of a table whose coordinates are inside the box, using the index created by CreateSpatialIndex. "
+                                + "The box includes its edges. "
+                                + "If columns is empty, all columns are returned. "
+                                + "Records are formatted like the results of SelectSQL. "
+                                + "If the database is not open, an empty list is returned."
+                    )
+    public YailList SelectInBox(final String table, final YailList columns, final double minX, final double minY, final double maxX, final double maxY) {
+        if (! checkDB("SelectInBox")) return YailList.makeEmptyList();
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                try {
+                    String[] xy = spatialColumns(table);
+                    Cursor cursor = db.rawQuery("SELECT " + spatialColumnList(columns) + spatialFrom(table, xy, minX, minY, maxX, maxY), null);
+                    task.rows = cursorToList(cursor);
+                } catch (SQLException e) {
+                    debugException(e);
+                }
+            }
+        });
+        debug("SelectInBox: " + task.rows.size() + " rows");
+        return YailList.makeList(task.rows);
+    }
+    
+    /**
+    * Selects the rows of a table whose coordinates are inside a box, asynchronously.
+    * @param tag: The identifier for the result of this operation
+    * @param table: The table
+    * @param columns: List of column names to return
+    * @param minX: The smallest x coordinate
+    * @param minY: The smallest y coordinate
+    * @param maxX: The largest x coordinate
+    * @param maxY: The largest y coordinate
+    */
+    @SimpleFunction(description = "Returns a list of records for the rows of a table whose coordinates are inside the box, asynchronously. "
+                                + "The tag identifies the result of this call in the AfterSelect event. "
+                                + "See SelectInBox for more information."
+                    )
+    public void SelectInBoxAsync(final String tag, final String table, final YailList columns, final double minX, final double minY, final double maxX, final double maxY) {
+        AsynchUtil.runAsynchronously(new Runnable() {
+            @Override
+            public void run() {
+                final YailList res = SelectInBox(table, columns, minX, minY, maxX, maxY);
+                form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        AfterSelect(tag, res.size(), res);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+    * Selects the rows of a table nearest to a point.
+    * @param table: The table
+    * @param columns: List of column names to return
+    * @param x: The x coordinate of the point
+    * @param y: The y coordinate of the point
+    * @param count: The maximum number of rows to return
+    * @param maxDistance: The largest distance from the point to search
+    * @return the list of result rows
+    */
+    @SimpleFunction(description = "Returns a list of records for the count rows of a table nearest to a point, nearest first, using the index created by CreateSpatialIndex. "
+                                + "Only rows within maxDistance of the point are returned, so fewer than count records may be returned. "
+                                + "The distance is the straight line distance in the units of the coordinates, "
+                                + "so for latitude and longitude it's only a good measure over short distances away from the poles. "
+                                + "If columns is empty, all columns are returned. "
+                                + "Records are formatted like the results of SelectSQL. "
+                                + "If the database is not open, an empty list is returned."
+                    )
+    public YailList SelectNearest(final String table, final YailList columns, final double x, final double y, final int count, final double maxDistance) {
+        if (! checkDB("SelectNearest")) return YailList.makeEmptyList();
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                try {
+                    if ((count <= 0) || (! (maxDistance > 0)))
+                        throw new SQLException("SelectNearest needs a count and maxDistance greater than 0");
+                    String[] xy = spatialColumns(table);
+                    
+                    // grow a box around the point until it holds count rows, or reaches maxDistance
+                    double half = maxDistance * NEAREST_FIRST_FRACTION;
+                    while (true) {
+                        String found = queryString("SELECT count(1) FROM (SELECT 1" + spatialFrom(table, xy, x - half, y - half, x + half, y + half)
+                                                 + " LIMIT " + count + ")", null);
+                        if ((Integer.parseInt(found) >= count) || (half >= maxDistance)) break;
+                        half = Math.min(half * 2, maxDistance);
+                    }
+                    
+                    // the nearest rows are no farther away than the corners of that box
+                    double radius = Math.min(half * Math.sqrt(2), maxDistance);
+                    String dx = "(t." + quoteName(xy[0]) + " - " + x + ")";
+                    String dy = "(t." + quoteName(xy[1]) + " - " + y + ")";
+                    String squared = dx + " * " + dx + " + " + dy + " * " + dy;
+                    Cursor cursor = db.rawQuery("SELECT " + spatialColumnList(columns)
+                                              + spatialFrom(table, xy, x - radius, y - radius, x + radius, y + radius)
+                                              + " AND " + squared + " <= " + (radius * radius)
+                                              + " ORDER BY " + squared + " LIMIT " + count, null);
+                    task.rows = cursorToList(cursor);
+                } catch (SQLException e) {
+                    debugException(e);
+                }
+            }
+        });
+        debug("SelectNearest: " + task.rows.size() + " rows");
+        return YailList.makeList(task.rows);
+    }
+    
+    /**
+    * Selects the rows of a table nearest to a point, asynchronously.
+    * @param tag: The identifier for the result of this operation
+    * @param table: The table
+    * @param columns: List of column names to return
+    * @param x: The x coordinate of the point
+    * @param y: The y coordinate of the point
+    * @param count: The maximum number of rows to return
+    * @param maxDistance: The largest distance from the point to search
+    */
+    @SimpleFunction(description = "Returns a list of records for the rows of a table nearest to a point, asynchronously. "
+                                + "The tag identifies the result of this call in the AfterSelect event. "
+                                + "See SelectNearest for more information."
+                    )
+    public void SelectNearestAsync(final String tag, final String table, final YailList columns, final double x, final double y, final int count, final double maxDistance) {
+        AsynchUtil.runAsynchronously(new Runnable() {
+            @Override
+            public void run() {
+                final YailList res = SelectNearest(table, columns, x, y, count, maxDistance);
+                form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        AfterSelect(tag, res.size(), res);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+    * Returns the quoted name of one of the spatial index triggers of a table.
+    */
+    private static String spatialTrigger(final String table, final String op) {
+        return quoteName(SPATIAL_INDEXES_TABLE + "_" + table + "_" + op);
+    }
+    
+    /**
+    * Drops the spatial index of a table and its triggers, if it has one.
+    * Must run on the database thread, inside a transaction.
+    */
+    private void dropSpatialIndex(final String table) {
+        for (String op : new String[] {"insert", "update", "delete"})
+            db.execSQL("DROP TRIGGER IF EXISTS " + spatialTrigger(table, op));
+        db.execSQL("DROP TABLE IF EXISTS " + quoteName(table + "_rtree"));
+        if (hasTable(SPATIAL_INDEXES_TABLE))
+            db.execSQL("DELETE FROM " + SPATIAL_INDEXES_TABLE + " WHERE tbl = ?", new Object[] {table});
+    }
+    
+    /**
+    * Returns the x and y columns of the spatial index of a table.
+    * Must run on the database thread.
+    */
+    private String[] spatialColumns(final String table) {
+        if (hasTable(SPATIAL_INDEXES_TABLE)) {
+            Cursor c = db.rawQuery("SELECT x, y FROM " + SPATIAL_INDEXES_TABLE + " WHERE tbl = ?", new String[] {table});
+            try {
+                if (c.moveToFirst())
+                    return new String[] {c.getString(0), c.getString(1)};
+            } finally {
+                c.close();
+            }
+        }
+        throw new SQLException("No spatial index for table " + table);
+    }
+    
+    /**
+    * Returns the selected columns of a spatial query, qualified with the table alias.
+    */
+    private static String spatialColumnList(final YailList columns) {
+        if ((columns == null) || (columns.size() == 0)) return "t.*";
+        StringBuilder list = new StringBuilder();
+        for (String column : columns.toStringArray()) {
+            if (list.length() > 0) list.append(", ");
+            list.append("t.").append(quoteName(column));
+        }
+        return list.toString();
+    }
+    
+    /**
+    * Returns the FROM and WHERE clauses of a spatial query for the rows inside a box.
+    * The R*Tree is read first to find the candidate rows, and since it stores coordinates with less precision
+    * than the table, the table's own coordinates are checked too.
+    */
+    private static String spatialFrom(final String table, final String[] xy, final double minX, final double minY, final double maxX, final double maxY) {
+        String x = "t." + quoteName(xy[0]);
+        String y = "t." + quoteName(xy[1]);
+        return " FROM " + quoteName(table + "_rtree") + " AS r CROSS JOIN " + quoteName(table) + " AS t ON t.rowid = r.id"
+             + " WHERE r.maxX >= " + minX + " AND r.minX <= " + maxX + " AND r.maxY >= " + minY + " AND r.minY <= " + maxY
+             + " AND " + x + " BETWEEN " + minX + " AND " + maxX + " AND " + y + " BETWEEN " + minY + " AND " + maxY;
+    }
+    
+    //========================================================
+    // Time series methods
+    //
+    
+    /**
+    * Creates a time series.
+    * @param name: The name of the time series
+    * @param partitionSize: The span of time kept in each raw table
+    * @param rollupSizes: The list of bucket sizes to keep rollups for
+    * @param retention: How long raw values are kept, or 0 to keep them forever
+    * @return true if the time series was created, false otherwise
+    */
+    @SimpleFunction(description = "Creates a time series, for timestamped values that are usually read as per-minute or per-hour aggregates. "
+                                + "Raw values are kept in one table per partitionSize span of time, named after the time series with a _raw_ suffix and the start of the span. "
+                                + "For each size in rollupSizes, a table named after the time series with a _rollup_ suffix and the size "
+                                + "keeps the count, sum, min and max of the values in each bucket of that size, updated as values are inserted. "
+                                + "Raw tables that ended more than retention before the newest value are dropped when a new raw table is started; "
+                                + "rollups are kept. A retention of 0 keeps raw values forever. "
+                                + "Timestamps are whole numbers, like the milliseconds returned by Clock.SystemTime, and all the sizes are in the same units. "
+                                + "Returns true if the time series was created, false if it already exists, an error occurs, or the database is not open."
+                    )
+    public boolean CreateTimeSeries(final String name, final long partitionSize, final YailList rollupSizes, final long retention) {
+        if (! checkDB("CreateTimeSeries")) return false;
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                db.beginTransaction();
+                try {
+                    if (partitionSize <= 0)
+                        throw new SQLException("CreateTimeSeries needs a partitionSize greater than 0");
+                    TreeSet<Long> sizes = new TreeSet<Long>();
+                    for (String size : rollupSizes.toStringArray()) {
+                        long s = Long.parseLong(size.trim());
+                        if (s <= 0)
+                            throw new SQLException("CreateTimeSeries needs rollup sizes greater than 0");
+                        sizes.add(s);
+                    }
+                    StringBuilder list = new StringBuilder();
+                    for (Long size : sizes) {
+                        if (list.length() > 0) list.append(",");
+                        list.append(size);
+                        db.execSQL("CREATE TABLE " + quoteName(name + "_rollup_" + size)
+                                 + " (bucket INTEGER PRIMARY KEY, \"count\" INTEGER NOT NULL, \"sum\" REAL NOT NULL, \"min\" REAL NOT NULL, \"max\" REAL NOT NULL)");
+                    }
+                    db.execSQL("CREATE TABLE IF NOT EXISTS " + TIME_SERIES_TABLE
+                             + " (name TEXT PRIMARY KEY, partition INTEGER NOT NULL, rollups TEXT NOT NULL, retention INTEGER NOT NULL)");
+                    db.execSQL("INSERT INTO " + TIME_SERIES_TABLE + " (name, partition, rollups, retention) VALUES (?, ?, ?, ?)",
+                               new Object[] {name, partitionSize, list.toString(), Math.max(0, retention)});
+                    db.setTransactionSuccessful();
+                    task.success = true;
+                } catch (SQLException e) {
+                    debugException(e);
+                } catch (NumberFormatException e) {
+                    debugException(e);
+                } finally {
+                    db.endTransaction();
+                    if (! task.success)
+                        noteRollback();
+                    invalidateSchema();
+                }
+            }
+        });
+        if (task.success)
+            debug("Time series created: " + name);
+        return task.success;
+    }
+    
+    /**
+    * Drops a time series.
+    * @param name: The name of the time series
+    * @return true if the time series was dropped or didn't exist, false otherwise
+    */
+    @SimpleFunction(description = "Drops a time series created by CreateTimeSeries, with all its raw and rollup tables. "
+                                + "Returns true if the time series was dropped or didn't exist, false if an error occurs or the database is not open."
+                    )
+    public boolean DropTimeSeries(final String name) {
+        if (! checkDB("DropTimeSeries")) return false;
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                db.beginTransaction();
+                try {
+                    TimeSeries series = timeSeries(name);
+                    if (series != null) {
+                        for (Long start : series.partitions())
+                            db.execSQL("DROP TABLE " + quoteName(series.partitionTable(start)));
+                        for (long size : series.rollups)
+                            db.execSQL("DROP TABLE IF EXISTS " + quoteName(series.rollupTable(size)));
+                        db.execSQL("DELETE FROM " + TIME_SERIES_TABLE + " WHERE name = ?", new Object[] {name});
+                    }
+                    db.setTransactionSuccessful();
+                    task.success = true;
+                } catch (SQLException e) {
+                    debugException(e);
+                } finally {
+                    db.endTransaction();
+                    if (! task.success)
+                        noteRollback();
+                    invalidateSchema();
+                }
+            }
+        });
+        if (task.success)
+            debug("Time series dropped: " + name);
+        return task.success;
+    }
+    
+    /**
+    * Adds a value to a time series.
+    * @param name: The name of the time series
+    * @param timestamp: The time of the value
+    * @param value: The value
+    * @return true if the value was added, false otherwise
+    */
+    @SimpleFunction(description = "Adds a value to a time series created by CreateTimeSeries, and to each of its rollups. "
+                                + "Returns true if the value was added, false if an error occurs or the database is not open."
+                    )
+    public boolean InsertTimeSeries(final String name, final long timestamp, final double value) {
+        if (! checkDB("InsertTimeSeries")) return false;
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                db.beginTransaction();
+                try {
+                    TimeSeries series = timeSeries(name);
+                    if (series == null)
+                        throw new SQLException("No such time series: " + name);
+                    long start = bucket(timestamp, series.partition);
+                    String table = series.partitionTable(start);
+                    if (! hasTable(table))
+                        createPartition(series, start);
+                    db.execSQL("INSERT INTO " + quoteName(table) + " (ts, value) VALUES (?, ?)", new Object[] {timestamp, value});
+                    noteWrite(name, "insert", 1);
+                    db.setTransactionSuccessful();
+                    task.success = true;
+                } catch (SQLException e) {
+                    debugException(e);
+                } finally {
+                    db.endTransaction();
+                    if (! task.success)
+                        noteRollback();
+                }
+            }
+        });
+        return task.success;
+    }
+    
+    /**
+    * Selects the aggregates of a time series over a range of time.
+    * @param name: The name of the time series
+    * @param from: The start of the range, included
+    * @param to: The end of the range, not included
+    * @param bucketSize: The span of time each result row covers
+    * @return the list of result rows
+    */
+    @SimpleFunction(description = "Returns a list of records with the aggregates of a time series for each bucketSize span of time from the from timestamp up to, "
+                                + "but not including, the to timestamp. "
+                                + "Each record has the columns bucket (the start of the span), count, sum, min, max and avg. "
+                                + "Spans without values are left out. "
+                                + "The largest rollup whose size divides bucketSize, from and to is read, and if there isn't one, the raw tables are read. "
+                                + "Records are formatted like the results of SelectSQL. "
+                                + "If the database is not open, an empty list is returned."
+                    )
+    public YailList SelectTimeSeries(final String name, final long from, final long to, final long bucketSize) {
+        if (! checkDB("SelectTimeSeries")) return YailList.makeEmptyList();
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                try {
+                    if (bucketSize <= 0)
+                        throw new SQLException("SelectTimeSeries needs a bucketSize greater than 0");
+                    TimeSeries series = timeSeries(name);
+                    if (series == null)
+                        throw new SQLException("No such time series: " + name);
+                    String bucket = "((bucket - " + from + ") / " + bucketSize + ") * " + bucketSize + " + " + from;
+                    String range = " WHERE bucket >= " + from + " AND bucket < " + to;
+                    String sql = null;
+                    for (int i = series.rollups.length - 1; i >= 0; i--) {
+                        long size = series.rollups[i];
+                        if (((bucketSize % size) == 0) && ((from % size) == 0) && ((to % size) == 0)) {
+                            sql = "SELECT " + bucket + " AS bucket, sum(\"count\") AS \"count\", sum(\"sum\") AS \"sum\", min(\"min\") AS \"min\", max(\"max\") AS \"max\", "
+                                + "sum(\"sum\") / sum(\"count\") AS avg FROM " + quoteName(series.rollupTable(size)) + range;
+                            break;
+                        }
+                    }
+                    if (sql == null) {
+                        // read the raw tables that overlap the range
+                        StringBuilder raw = new StringBuilder();
+                        for (Long start : series.partitions()) {
+                            if ((start >= to) || (start + series.partition <= from)) continue;
+                            if (raw.length() > 0) raw.append(" UNION ALL ");
+                            raw.append("SELECT ts AS bucket, value FROM ").append(quoteName(series.partitionTable(start)));
+                        }
+                        if (raw.length() == 0) {
+                            task.rows = new ArrayList<Object>();
+                            return;
+                        }
+                        sql = "SELECT " + bucket + " AS bucket, count(1) AS \"count\", sum(value) AS \"sum\", min(value) AS \"min\", max(value) AS \"max\", "
+                            + "avg(value) AS avg FROM (" + raw + ")" + range;
+                    }
+                    Cursor cursor = db.rawQuery(sql + " GROUP BY 1 ORDER BY 1", null);
+                    task.rows = cursorToList(cursor);
+                } catch (SQLException e) {
+                    debugException(e);
+                }
+            }
+        });
+        debug("SelectTimeSeries: " + task.rows.size() + " rows");
+        return YailList.makeList(task.rows);
+    }
+    
+    /**
+    * Selects the aggregates of a time series over a range of time, asynchronously.
+    * @param tag: The identifier for the result of this operation
+    * @param name: The name of the time series
+    * @param from: The start of the range, included
+    * @param to: The end of the range, not included
+    * @param bucketSize: The span of time each result row covers
+    */
+    @SimpleFunction(description = "Returns a list of records with the aggregates of a time series over a range of time, asynchronously. "
+                                + "The tag identifies the result of this call in the AfterSelect event. "
+                                + "See SelectTimeSeries for more information."
+                    )
+    public void SelectTimeSeriesAsync(final String tag, final String name, final long from, final long to, final long bucketSize) {
+        AsynchUtil.runAsynchronously(new Runnable() {
+            @Override
+            public void run() {
+                final YailList res = SelectTimeSeries(name, from, to, bucketSize);
+                form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        AfterSelect(tag, res.size(), res);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+    * Returns the start of the bucket holding a timestamp.
+    */
+    private static long bucket(final long timestamp, final long size) {
+        long start = timestamp - (timestamp % size);
+        return (start > timestamp) ? start - size : start;
+    }
+    
+    /**
+    * Returns the settings of a time series, or null if it doesn't exist.
+    * Must run on the database thread.
+    */
+    private TimeSeries timeSeries(final String name) {
+        if (! hasTable(TIME_SERIES_TABLE)) return null;
+        Cursor c = db.rawQuery("SELECT partition, rollups, retention FROM " + TIME_SERIES_TABLE + " WHERE name = ?", new String[] {name});
+        try {
+            if (! c.moveToFirst()) return null;
+            return new TimeSeries(name, c.getLong(0), c.getString(1), c.getLong(2));
+        } finally {
+            c.close();
+        }
+    }
+    
+    /**
+    * Creates the raw table for a partition of a time series, with the triggers that update its rollups,
+    * and drops the raw tables that are past the retention.
+    * Must run on the database thread, inside a transaction.
+    */
+    private void createPartition(final TimeSeries series, final long start) {
+        String table = quoteName(series.partitionTable(start));
+        db.execSQL("CREATE TABLE " + table + " (ts INTEGER NOT NULL, value REAL NOT NULL)");
+        db.execSQL("CREATE INDEX " + quoteName(series.partitionTable(start) + "_ts") + " ON " + table + " (ts)");
+        for (long size : series.rollups) {
+            String rollup = quoteName(series.rollupTable(size));
+            String bucket = "(new.ts - (new.ts % " + size + ") - (CASE WHEN new.ts % " + size + " < 0 THEN " + size + " ELSE 0 END))";
+            db.execSQL("CREATE TRIGGER " + quoteName(series.partitionTable(start) + "_" + size) + " AFTER INSERT ON " + table + " BEGIN "
+                     + "INSERT OR IGNORE INTO " + rollup + " (bucket, \"count\", \"sum\", \"min\", \"max\") VALUES (" + bucket + ", 0, 0, new.value, new.value); "
+                     + "UPDATE " + rollup + " SET \"count\" = \"count\" + 1, \"sum\" = \"sum\" + new.value, "
+                     + "\"min\" = min(\"min\", new.value), \"max\" = max(\"max\", new.value) WHERE bucket = " + bucket + "; END");
+        }
+        if (series.retention > 0) {
+            for (Long old : series.partitions())
+                if (old + series.partition <= start - series.retention)
+                    db.execSQL("DROP TABLE " + quoteName(series.partitionTable(old)));
+        }
+        invalidateSchema();
+    }
+    
+    /**
+    * The settings of a time series.
+    */
+    private class TimeSeries {
+    
+        public final String name;
+        public final long partition;
+        public final long[] rollups;        // smallest first
+        public final long retention;
+        
+        public TimeSeries(String name, long partition, String rollups, long retention) {
+            this.name = name;
+            this.partition = partition;
+            this.retention = retention;
+            String[] sizes = (rollups.length() == 0) ? new String[0] : rollups.split(",");
+            this.rollups = new long[sizes.length];
+            for (int i = 0; i < sizes.length; i++)
+                this.rollups[i] = Long.parseLong(sizes[i]);
+        }
+        
+        public String partitionTable(long start) {
+            return name + "_raw_" + start;
+        }
+        
+        public String rollupTable(long size) {
+            return name + "_rollup_" + size;
+        }
+        
+        /**
+        * Returns the starts of the raw tables, oldest first.
+        * Must run on the database thread.
+        */
+        public TreeSet<Long> partitions() {
+            TreeSet<Long> starts = new TreeSet<Long>();
+            refreshSchema();
+            if (schema == null) return starts;
+            String prefix = name + "_raw_";
+            for (String table : schema.tables.keySet()) {
+                if (! table.startsWith(prefix)) continue;
+                try {
+                    starts.add(Long.parseLong(table.substring(prefix.length())));
+                } catch (NumberFormatException e) {}
+            }
+            return starts;
+        }
+        
+    }
+    
+    //========================================================
+    // Index advisor methods
+    //
+    
+    /**
+    * Should query shapes be recorded for the index advisor.
+    */
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+                    description = "Specifies whether the statements run by SelectSQL, Select, Update and Delete are recorded for SuggestIndexes. "
+                                + "Literal values in SelectSQL statements are replaced with ? so statements that only differ in their values are recorded once. "
+                                + "At most " + MAX_QUERY_SHAPES + " different statements are recorded."
+                    )
+    public boolean IndexAdvisor() {
+        return indexAdvisor;
+    }
+  
+    /**
+    * Should query shapes be recorded for the index advisor.
+    */
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN,
+                      defaultValue = "false")
+    @SimpleProperty
+    public void IndexAdvisor(boolean indexAdvisor) {
+        this.indexAdvisor = indexAdvisor;
+    }
+    
+    /**
+    * Suggests indexes for the recorded queries.
+    * @return the list of CREATE INDEX statements
+    */
+    @SimpleFunction(description = "Returns a list of CREATE INDEX statements that would help the statements recorded while IndexAdvisor is true. "
+                                + "Each recorded statement is checked with EXPLAIN QUERY PLAN, and for each table it reads from start to end, "
+                                + "an index is suggested on the columns its WHERE clause compares with =, IN or IS, followed by the first column compared with <, >, <=, >= or BETWEEN. "
+                                + "Suggestions for the statements that were run the most come first, and indexes that already exist aren't suggested. "
+                                + "The statements can be run with CreateIndexAsync or Execute. "
+                                + "If the database is not open, an empty list is returned."
+                    )
+    public YailList SuggestIndexes() {
+        if (! checkDB("SuggestIndexes")) return YailList.makeEmptyList();
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                final HashMap<String, Integer> suggestions = new HashMap<String, Integer>();
+                for (String shape : queryShapes.keySet()) {
+                    try {
+                        for (String statement : suggestIndexes(shape)) {
+                            Integer count = suggestions.get(statement);
+                            suggestions.put(statement, ((count == null) ? 0 : count) + queryShapes.get(shape));
+                        }
+                    } catch (SQLException e) {
+                        debug("SuggestIndexes: " + e.getMessage());
+                    }
+                }
+                ArrayList<String> statements = new ArrayList<String>(suggestions.keySet());
+                Collections.sort(statements, new Comparator<String>() {
+                    @Override
+                    public int compare(String a, String b) {
+                        return suggestions.get(b) - suggestions.get(a);
+                    }
+                });
+                task.rows = statements;
+            }
+        });
+        debug("SuggestIndexes: " + task.rows.size() + " indexes");
+        return YailList.makeList(task.rows);
+    }
+    
+    /**
+    * Forgets the recorded queries.
+    */
+    @SimpleFunction(description = "Forgets the statements recorded for SuggestIndexes.")
+    public void ClearQueryShapes() {
+        new DBAsyncTask().queue(new DBRunnable() {
+            @Override
+            public void run() {
+                queryShapes.clear();
+            }
+        });
+    }
+    
+    /**
+    * Creates an index, asynchronously, with progress and cancellation.
+    * @param tag: The identifier for the result of this operation
+    * @param sql: The CREATE INDEX statement
+    */
+    @SimpleFunction(description = "Runs a CREATE INDEX statement, asynchronously. "
+                                + "SQLite builds an index with a single statement, so the build is one step that other database calls "
+                                + "wait for until it's done, however large the table is. "
+                                + "The build waits for an open transaction to end before it starts, "
+                                + "and can be stopped at any time with CancelIndexBuild. "
+                                + "The tag identifies the result of this call in the AfterCreateIndex event."
+                    )
+    public void CreateIndexAsync(final String tag, final String sql) {
+        final IndexBuild build = new IndexBuild(sql);
+        synchronized (indexBuilds) {
+            indexBuilds.put(tag, build);
+        }
+        AsynchUtil.runAsynchronously(new Runnable() {
+            @Override
+            public void run() {
+                boolean res = false;
+                try {
+                    if (checkDB("CreateIndexAsync"))
+                        res = build.run();
+                } finally {
+                    synchronized (indexBuilds) {
+                        if (indexBuilds.get(tag) == build)
+                            indexBuilds.remove(tag);
+                    }
+                }
+                if (res)
+                    debug("Index created");
+                final boolean result = res;
+                form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        AfterCreateIndex(tag, result);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+    * Cancels an index build.
+    * @param tag: The identifier of the index build
+    * @return true if the build was running, false otherwise
+    */
+    @SimpleFunction(description = "Stops the CreateIndexAsync call with the tag. "
+                                + "The index isn't created and the AfterCreateIndex event fires with a result of false. "
+                                + "Returns true if the build was running, false otherwise."
+                    )
+    public boolean CancelIndexBuild(final String tag) {
+        IndexBuild build;
+        synchronized (indexBuilds) {
+            build = indexBuilds.get(tag);
+        }
+        if (build == null) return false;
+        build.cancel();
+        return true;
+    }
+    
+    /**
+    * Records the shape of a statement for the index advisor.
+    * Must run on the database thread.
+    */
+    private void recordQueryShape(final String sql) {
+        if (! indexAdvisor) return;
+        String shape = NUMBER_LITERAL_PATTERN.matcher(STRING_LITERAL_PATTERN.matcher(sql).replaceAll("?")).replaceAll("?").trim().replaceAll("\\s+", " ");
+        Integer count = queryShapes.get(shape);
+        if ((count == null) && (queryShapes.size() >= MAX_QUERY_SHAPES)) return;
+        queryShapes.put(shape, (count == null) ? 1 : count + 1);
+    }
+    
+    /**
+    * Returns the CREATE INDEX statements that would keep a statement from reading whole tables.
+    * Must run on the database thread.
+    */
+    private ArrayList<String> suggestIndexes(final String shape) {
+        ArrayList<String> statements = new ArrayList<String>();
+        refreshSchema();
+        if (schema == null) return statements;
+        Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + shape, null);
+        try {
+            int detail = c.getColumnIndex("detail");
+            while (c.moveToNext()) {
+                Matcher scan = SCAN_PATTERN.matcher(c.getString(detail));
+                if (! scan.matches()) continue;
+                String table = null;
+                for (String name : schema.tables.keySet())
+                    if (name.equalsIgnoreCase(scan.group(1))) table = name;
+                if (table == null) continue;
+                String statement = suggestIndex(shape, table, (scan.group(2) == null) ? table : scan.group(2), schema.tables.get(table));
+                if ((statement != null) && (! statements.contains(statement)))
+                    statements.add(statement);
+            }
+        } finally {
+            c.close();
+        }
+        return statements;
+    }
+    
+    /**
+    * Returns a CREATE INDEX statement on the columns of a table a statement compares in its WHERE clause,
+    * or null if there aren't any or an index on them already exists.
+    */
+    private static String suggestIndex(final String shape, final String table, final String alias, final TableInfo info) {
+        int where = shape.toUpperCase().indexOf(" WHERE ");
+        if (where == -1) return null;
+        ArrayList<String> equal = new ArrayList<String>();
+        String range = null;
+        Matcher m = COMPARISON_PATTERN.matcher(shape.substring(where));
+        while (m.find()) {
+            String qualifier = unquoteName(m.group(1));
+            if ((qualifier != null) && (! qualifier.equalsIgnoreCase(alias)) && (! qualifier.equalsIgnoreCase(table))) continue;
+            String column = null;
+            for (String name : info.columns)
+                if (name.equalsIgnoreCase(unquoteName(m.group(2)))) column = name;
+            if ((column == null) || equal.contains(column)) continue;
+            String op = m.group(3).toUpperCase();
+            if (op.startsWith("=") || op.equals("IS") || op.endsWith("IN"))
+                equal.add(column);
+            else if (range == null)
+                range = column;
+        }
+        if ((range != null) && (! equal.contains(range)))
+            equal.add(range);
+        if (equal.isEmpty()) return null;
+        for (ArrayList<String> index : info.indexes.values())
+            if ((index.size() >= equal.size()) && index.subList(0, equal.size()).equals(equal)) return null;
+        StringBuilder name = new StringBuilder("idx_" + table);
+        StringBuilder columns = new StringBuilder();
+        for (String column : equal) {
+            name.append("_").append(column);
+            if (columns.length() > 0) columns.append(", ");
+            columns.append(quoteName(column));
+        }
+        return "CREATE INDEX IF NOT EXISTS " + quoteName(name.toString()) + " ON " + quoteName(table) + " (" + columns + ")";
+    }
+    
+    /**
+    * Removes the quotes from a table or column name, if it has any.
+    */
+    private static String unquoteName(final String name) {
+        if ((name == null) || (name.charAt(0) != '"')) return name;
+        return name.substring(1, name.length() - 1).replace("\"\"", "\"");
+    }
+    
+    /**
+    * A CREATE INDEX statement run on the database thread so it can be cancelled.
+    */
+    private class IndexBuild {
+    
+        private final String sql;
+        private final CancellationSignal signal = new CancellationSignal();
+        private volatile boolean cancelled = false;
+        
+        public IndexBuild(String sql) {
+            this.sql = sql;
+        }
+        
+        public void cancel() {
+            cancelled = true;
+            signal.cancel();
+        }
+        
+        /**
+        * Runs the build once no transaction is open.
+        * Must not be called on the database thread.
+        * @return true if the index was created
+        */
+        public boolean run() {
+            if (! CREATE_INDEX_PATTERN.matcher(sql).lookingAt()) {
+                debug("CreateIndexAsync: not a CREATE INDEX statement");
+                return false;
+            }
+            while (true) {
+                if (cancelled) {
+                    debug("Index build cancelled");
+                    return false;
+                }
+                final DBAsyncTask task = new DBAsyncTask();
+                task.executeAndWait(new DBRunnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (db == null)
+                                throw new Exception("Database closed while creating index.");
+                            if (db.inTransaction()) {
+                                task.count = 0;             // wait for the transaction to end
+                                return;
+                            }
+                            db.beginTransaction();
+                            try {
+                                Cursor cursor = db.rawQuery(sql, null, signal);
+                                try {
+                                    cursor.getCount();          // runs the statement
+                                } finally {
+                                    cursor.close();
+                                }
+                                db.setTransactionSuccessful();
+                                task.success = true;
+                            } finally {
+                                db.endTransaction();
+                                invalidateSchema();
+                            }
+                        } catch (OperationCanceledException e) {
+                            debug("Index build cancelled");
+                        } catch (Exception e) {
+                            debugException(e);
+                        }
+                    }
+                });
+                if (task.success) return true;
+                if (task.count == -1) return false;
+                try {
+                    Thread.sleep(BACKUP_WAIT_DELAY);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        }
+        
+    }
+    
+    //========================================================
+    // Maintenance methods
+    //
+    
+    /**
+    * Seconds between scheduled maintenance runs.
+    */
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+                    description = "Specifies the number of seconds between scheduled maintenance runs while the database is open, or 0 to turn off scheduled maintenance. "
+                                + "Scheduled maintenance waits until the database has been idle for a couple of seconds. "
+                                + "See RunMaintenance for more information."
+                    )
+    public int MaintenanceInterval() {
+        return maintenanceInterval;
+    }
+  
+    /**
+    * Seconds between scheduled maintenance runs.
+    */
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+                      defaultValue = "0")
+    @SimpleProperty
+    public void MaintenanceInterval(int maintenanceInterval) {
+        this.maintenanceInterval = Math.max(0, maintenanceInterval);
+        scheduleMaintenance();
+    }
+    
+    /**
+    * Milliseconds a maintenance run may spend.
+    */
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+                    description = "Specifies the number of milliseconds a maintenance run may spend before it stops. "
+                                + "Work left over is done by the next run."
+                    )
+    public int MaintenanceTimeBudget() {
+        return maintenanceTimeBudget;
+    }
+  
+    /**
+    * Milliseconds a maintenance run may spend.
+    */
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+                      defaultValue = "200")
+    @SimpleProperty
+    public void MaintenanceTimeBudget(int maintenanceTimeBudget) {
+        this.maintenanceTimeBudget = Math.max(0, maintenanceTimeBudget);
+    }
+    
+    /**
+    * Runs database maintenance in the background.
+    */
+    @SimpleFunction(description = "Runs database maintenance in the background. "
+                                + "Maintenance runs PRAGMA optimize, analyzes tables that have had many rows written since they were last analyzed, "
+                                + "and releases free pages with an incremental vacuum if EnableIncrementalVacuum has been called. "
+                                + "Each piece of work is a separate short step, and maintenance stops when other database calls are waiting, "
+                                + "a transaction is open, or MaintenanceTimeBudget is used up. "
+                                + "The AfterMaintenance event fires when the run ends. "
+                                + "If maintenance is already running, nothing happens."
+                    )
+    public void RunMaintenance() {
+        if ((db == null) || (! maintenanceRunning.compareAndSet(false, true))) return;
+        AsynchUtil.runAsynchronously(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runMaintenance();
+                } finally {
+                    maintenanceRunning.set(false);
+                    scheduleMaintenance();
+                }
+            }
+        });
+    }
+    
+    /**
+    * Turns on incremental vacuum.
+    */
+    @SimpleFunction(description = "Switches the database to incremental auto vacuum so maintenance can release free pages a few at a time. "
+                                + "This rebuilds the whole database with VACUUM, which can take a long time on a large database, but only needs to be done once. "
+                                + "Returns true if it succeeded, false if an error occurs, a transaction is open, or the database is not open."
+                    )
+    public boolean EnableIncrementalVacuum() {
+        if (! checkDB("EnableIncrementalVacuum")) return false;
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                try {
+                    if (db.inTransaction())
+                        throw new Exception("Unable to vacuum during a transaction.");
+                    db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                    db.execSQL("VACUUM");
+                    task.success = true;
+                } catch (Exception e) {
+                    debugException(e);
+                }
+            }
+        });
+        if (task.success)
+            debug("Incremental vacuum enabled");
+        return task.success;
+    }
+    
+    /**
+    * Adds a rule that purges old rows from a table.
+    * @param table: The table
+    * @param column: The column holding the time each row was written, in milliseconds
+    * @param maxAge: The number of milliseconds rows are kept
+    * @return true if the rule was added, false otherwise
+    */
+    @SimpleFunction(description = "Adds a rule that purges the rows of a table that are older than maxAge milliseconds, "
+                                + "going by a column holding a time in milliseconds, like the values returned by Clock.SystemTime. "
+                                + "Rules are stored in the database and apply until RemovePurgeRule is called. "
+                                + "Adding a rule for a table that already has one replaces it, and the next purge checks the whole table again. "
+                                + "Rows are purged by PurgeExpiredRows and by scheduled maintenance. "
+                                + "Returns true if the rule was added, false if an error occurs or the database is not open."
+                    )
+    public boolean AddPurgeRule(final String table, final String column, final long maxAge) {
+        if (! checkDB("AddPurgeRule")) return false;
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                try {
+                    db.execSQL("CREATE TABLE IF NOT EXISTS " + PURGE_RULES_TABLE
+                             + " (tbl TEXT PRIMARY KEY, col TEXT NOT NULL, max_age INTEGER NOT NULL, last_rowid INTEGER)");
+                    db.execSQL("INSERT OR REPLACE INTO " + PURGE_RULES_TABLE + " (tbl, col, max_age) VALUES (?, ?, ?)", new Object[] {table, column, maxAge});
+                    task.success = true;
+                } catch (SQLException e) {
+                    debugException(e);
+                } finally {
+                    invalidateSchema();
+                }
+            }
+        });
+        if (task.success)
+            debug("Purge rule added: " + table);
+        return task.success;
+    }
+    
+    /**
+    * Removes the purge rule of a table.
+    * @param table: The table
+    * @return true if the rule was removed or didn't exist, false otherwise
+    */
+    @SimpleFunction(description = "Removes the rule added by AddPurgeRule for a table. "
+                                + "Returns true if the rule was removed or didn't exist, false if an error occurs or the database is not open."
+                    )
+    public boolean RemovePurgeRule(final String table) {
+        if (! checkDB("RemovePurgeRule")) return false;
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                try {
+                    if (hasTable(PURGE_RULES_TABLE))
+                        db.execSQL("DELETE FROM " + PURGE_RULES_TABLE + " WHERE tbl = ?", new Object[] {table});
+                    task.success = true;
+                } catch (SQLException e) {
+                    debugException(e);
+                }
+            }
+        });
+        if (task.success)
+            debug("Purge rule removed: " + table);
+        return task.success;
+    }
+    
+    /**
+    * Purges expired rows in the background.
+    */
+    @SimpleFunction(description = "Purges the rows that have expired under the rules added by AddPurgeRule, in the background. "
+                                + "Rows are checked " + PURGE_STEP_ROWS + " at a time in rowid order, each step in its own short transaction, and the purge waits "
+                                + "whenever other database calls or maintenance are waiting or a transaction is open, so it never holds up the app for long. "
+                                + "Rows are expected to be written in time order, so each purge picks up after the last row the previous one deleted "
+                                +   "and stops at the first step with nothing to delete. "
+                                + "The AfterPurge event fires for each rule once its table has been purged. "
+                                + "Scheduled maintenance also starts a purge. "
+                                + "If a purge is already running, nothing happens."
+                    )
+    public void PurgeExpiredRows() {
+        if ((db == null) || (! purgeRunning.compareAndSet(false, true))) return;
+        AsynchUtil.runAsynchronously(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    purgeExpiredRows();
+                } finally {
+                    purgeRunning.set(false);
+                }
+            }
+        });
+    }
+    
+    /**
+    * Schedules the next maintenance run, or cancels it if scheduled maintenance is off or the database is closed.
+    */
+    private void scheduleMaintenance() {
+        handler.removeCallbacks(maintenanceTimer);
+        if ((maintenanceInterval > 0) && (db != null))
+            handler.postDelayed(maintenanceTimer, maintenanceInterval * 1000L);
+    }
+    
+    /**
+    * Performs a maintenance run as a series of short database tasks.
+    * Must not be called on the database thread.
+    */
+    private void runMaintenance() {
+        final long start = SystemClock.uptimeMillis();
+        final long deadline = start + maintenanceTimeBudget;
+        final ArrayList<String> analyzed = new ArrayList<String>();
+        final ArrayList<String> tables = new ArrayList<String>();
+        long pagesFreed = 0;
+        
+        // first step: let SQLite analyze what its query planner wants, and find the busy tables
+        DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                if ((db == null) || db.inTransaction()) return;
+                try {
+                    queryString("PRAGMA analysis_limit = " + ANALYSIS_LIMIT, null);
+                    queryString("PRAGMA optimize", null);
+                    for (String table : tableWrites.keySet())
+                        if (tableWrites.get(table) >= MAINTENANCE_MIN_WRITES)
+                            tables.add(table);
+                } catch (SQLException e) {
+                    debugException(e);
+                }
+            }
+        });
+        
+        for (final String table : tables) {
+            if (! maintenanceMayContinue(deadline)) break;
+            task = new DBAsyncTask();
             task.executeAndWait(new DBRunnable() {
                 @Override
                 public void run() {
-                    if (db != null) {
-                        task.success = true;
-                        return;
+                    if ((db == null) || db.inTransaction()) return;
+                    try {
+                        db.execSQL("ANALYZE " + quoteName(table));
+                        tableWrites.remove(table);
+                        analyzed.add(table);
+                    } catch (SQLException e) {
+                        debugException(e);
+                        tableWrites.remove(table);          // probably dropped, don't try again
                     }
+                }
+            });
+        }
+        
+        while (maintenanceMayContinue(deadline)) {
+            final DBAsyncTask step = new DBAsyncTask();
+            step.executeAndWait(new DBRunnable() {
+                @Override
+                public void run() {
+                    if ((db == null) || db.inTransaction()) return;
                     try {
-                        dbHelper = new DBHelper(context);
-                        db = dbHelper.getWritableDatabase();
-                        task.success = true;
+                        if (! "2".equals(queryString("PRAGMA auto_vacuum", null))) return;
+                        long before = Long.parseLong(queryString("PRAGMA freelist_count", null));
+                        if (before == 0) return;
+                        queryString("PRAGMA incremental_vacuum(" + VACUUM_STEP_PAGES + ")", null);
+                        step.id = before - Long.parseLong(queryString("PRAGMA freelist_count", null));
+                    } catch (SQLException e) {
+                        debugException(e);
+                    }
+                }
+            });
+            if (step.id <= 0) break;
+            pagesFreed += step.id;
+        }
+        
+        final long elapsed = SystemClock.uptimeMillis() - start;
+        final long freed = pagesFreed;
+        debug("Maintenance: " + analyzed.size() + " tables analyzed, " + freed + " pages freed");
+        form.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                AfterMaintenance(YailList.makeList(analyzed), freed, elapsed);
+            }
+        });
+    }
+    
+    /**
+    * Returns true if maintenance may run another step.
+    * It stops when its time is up or foreground work is waiting for the database thread.
+    */
+    private boolean maintenanceMayContinue(long deadline) {
+        return (db != null) && (SystemClock.uptimeMillis() < deadline) && (pendingTasks.get() == 0);
+    }
+    
+    /**
+    * Purges the expired rows of each table with a purge rule, as a series of short database tasks.
+    * Must not be called on the database thread.
+    */
+    private void purgeExpiredRows() {
+        final ArrayList<String[]> rules = new ArrayList<String[]>();
+        DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                if ((db == null) || (! hasTable(PURGE_RULES_TABLE))) return;
+                try {
+                    Cursor c = db.rawQuery("SELECT tbl, col, max_age, last_rowid FROM " + PURGE_RULES_TABLE, null);
+                    try {
+                        while (c.moveToNext())
+                            rules.add(new String[] {c.getString(0), c.getString(1), c.getString(2), c.getString(3)});
+                    } finally {
+                        c.close();
+                    }
+                } catch (SQLException e) {
+                    debugException(e);
+                }
+            }
+        });
+        
+        for (String[] rule : rules) {
+            final String table = rule[0];
+            final long cutoff = System.currentTimeMillis() - Long.parseLong(rule[2]);
+            // each step checks the next PURGE_STEP_ROWS rows that exist, however sparse the rowids are
+            final String endSQL = "SELECT max(rowid) FROM (SELECT rowid FROM " + quoteName(table) + " WHERE rowid > ? ORDER BY rowid LIMIT " + PURGE_STEP_ROWS + ")";
+            final String expired = " FROM " + quoteName(table) + " WHERE rowid > ? AND rowid <= ? AND " + quoteName(rule[1]) + " < ?";
+            final String sql = "DELETE" + expired;
+            
+            // rows added after the purge starts are checked next time
+            final long[] last = new long[] {-1};
+            task = new DBAsyncTask();
+            task.executeAndWait(new DBRunnable() {
+                @Override
+                public void run() {
+                    if (db == null) return;
+                    try {
+                        String max = queryString("SELECT max(rowid) FROM " + quoteName(table), null);
+                        if (max != null)
+                            last[0] = Long.parseLong(max);
                     } catch (SQLException e) {
-                        db = null;
-                        dbHelper = null;
                         debugException(e);
                     }
                 }
             });
+            
+            // rows are expected to be written in time order, so the purge picks up after the last row it deleted and
+            // stops at the first step with nothing to delete, since the rows after it are newer still
+            long purged = 0;
+            long next = (rule[3] == null) ? Long.MIN_VALUE : Long.parseLong(rule[3]);
+            while ((next < last[0]) && purgeMayContinue()) {
+                final long from = next;
+                final boolean[] busy = new boolean[] {false};
+                final DBAsyncTask step = new DBAsyncTask();
+                step.executeAndWait(new DBRunnable() {
+                    @Override
+                    public void run() {
+                        if (db == null) return;
+                        if (db.inTransaction()) {
+                            busy[0] = true;         // try again once it's done
+                            return;
+                        }
+                        SQLiteStatement statement = db.compileStatement(sql);
+                        db.beginTransaction();
+                        try {
+                            String end = queryString(endSQL, new String[] {String.valueOf(from)});
+                            String to = (end == null) ? String.valueOf(Long.MAX_VALUE) : end;
+                            String lastExpired = queryString("SELECT max(rowid)" + expired, new String[] {String.valueOf(from), to, String.valueOf(cutoff)});
+                            statement.bindLong(1, from);
+                            statement.bindLong(2, Long.parseLong(to));
+                            statement.bindLong(3, cutoff);
+                            step.count = statement.executeUpdateDelete();
+                            noteWrite(table, "delete", step.count);
+                            if (lastExpired != null) {
+                                db.execSQL("UPDATE " + PURGE_RULES_TABLE + " SET last_rowid = ? WHERE tbl = ?", new Object[] {lastExpired, table});
+                                step.id = Long.parseLong(lastExpired);
+                            }
+                            db.setTransactionSuccessful();
+                            step.success = true;
+                        } catch (SQLException e) {
+                            debugException(e);
+                        } finally {
+                            db.endTransaction();
+                            statement.close();
+                            if (! step.success)
+                                noteRollback();
+                        }
+                    }
+                });
+                if (step.success) {
+                    if (step.count <= 0) break;
+                    purged += step.count;
+                    next = step.id;
+                } else if (busy[0]) {
+                    try {
+                        Thread.sleep(PURGE_WAIT_DELAY);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                } else
+                    break;
+            }
+            
+            if (db == null) return;
+            final long rows = purged;
+            debug("Purge: " + rows + " rows from " + table);
+            form.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    AfterPurge(table, rows);
+                }
+            });
+        }
+    }
+    
+    /**
+    * Waits until no foreground work or maintenance is waiting for the database thread.
+    * @return true if the purge may run another step, false if the database was closed
+    */
+    private boolean purgeMayContinue() {
+        while ((db != null) && ((pendingTasks.get() > 0) || maintenanceRunning.get())) {
+            try {
+                Thread.sleep(PURGE_WAIT_DELAY);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return db != null;
+    }
+
+    //========================================================
+    // In-memory methods
+    //
+    
+    /**
+    * Should the database be kept in memory.
+    */
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+                    description = "Specifies whether the database is kept in memory instead of being read and written in its file. "
+                                + "When the database is opened, the file is loaded into memory if it exists. "
+                                + "Changes are only written to the file by SnapshotDatabase, every SnapshotInterval seconds, when the app is paused, "
+                                + "and when the database is closed, so changes made since the last snapshot are lost if the app is killed. "
+                                + "The backup methods need the database file and don't work in memory. "
+                                + "Set this before opening the database; changing it while the database is open is an error and is ignored. "
+                                + "Every component that opens the same database must use the same setting."
+                    )
+    public boolean InMemory() {
+        return inMemory;
+    }
+  
+    /**
+    * Should the database be kept in memory.
+    */
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN,
+                      defaultValue = "false")
+    @SimpleProperty
+    public void InMemory(boolean inMemory) {
+        if ((db != null) || (openTask != null)) {
+            debugException(new Exception("InMemory can't be changed while the database is open."));
+            return;
+        }
+        this.inMemory = inMemory;
+    }
+    
+    /**
+    * Seconds between snapshots of an in-memory database.
+    */
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR,
+                    description = "Specifies the number of seconds between snapshots of an in-memory database to its file, or 0 to only snapshot "
+                                + "when the app is paused, the database is closed, or SnapshotDatabase is called. "
+                                + "Nothing is written if the database hasn't changed since the last snapshot."
+                    )
+    public int SnapshotInterval() {
+        return snapshotInterval;
+    }
+  
+    /**
+    * Seconds between snapshots of an in-memory database.
+    */
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER,
+                      defaultValue = "0")
+    @SimpleProperty
+    public void SnapshotInterval(int snapshotInterval) {
+        this.snapshotInterval = Math.max(0, snapshotInterval);
+        scheduleSnapshot();
+    }
+    
+    /**
+    * Writes an in-memory database to its file.
+    * @return true if the snapshot was written or wasn't needed, false otherwise
+    */
+    @SimpleFunction(description = "Writes an in-memory database to its file. "
+                                + "The snapshot is written to a temporary file that replaces the database file once it's complete and synced to storage. "
+                                + "A transaction can't be open. "
+                                + "Returns true if the snapshot was written or the database hasn't changed since the last one, "
+                                + "false if an error occurs, the database isn't in memory, or the database is not open."
+                    )
+    public boolean SnapshotDatabase() {
+        if (! checkDB("SnapshotDatabase")) return false;
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                try {
+                    task.success = snapshot();
+                } catch (Exception e) {
+                    debugException(e);
+                }
+            }
+        });
+        return task.success;
+    }
+    
+    /**
+    * Writes the write buffers, and snapshots an in-memory database, when the app is paused.
+    */
+    @Override
+    public void onPause() {
+        if (db == null) return;
+        for (WriteBuffer buffer : writeBuffers())
+            buffer.queueFlush();
+        if (! openInMemory()) return;
+        new DBAsyncTask().queue(new DBRunnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot();
+                } catch (Exception e) {
+                    debugException(e);
+                }
+            }
+        });
+    }
+    
+    /**
+    * Returns true if the open database is in memory.
+    * The mode is kept with the open connection, since InMemory may have been changed after it was opened.
+    */
+    private boolean openInMemory() {
+        SharedDatabase s = shared;
+        return (s != null) && s.inMemory;
+    }
+    
+    /**
+    * Schedules the next snapshot, or cancels it if timed snapshots are off or the database is closed.
+    */
+    private void scheduleSnapshot() {
+        handler.removeCallbacks(snapshotTimer);
+        if (openInMemory() && (snapshotInterval > 0))
+            handler.postDelayed(snapshotTimer, snapshotInterval * 1000L);
+    }
+    
+    /**
+    * Returns a marker that changes whenever the in-memory database changes.
+    * Must run on the database thread.
+    */
+    private String snapshotMarker() {
+        return queryString("SELECT total_changes()", null) + ":" + queryString("PRAGMA schema_version", null);
+    }
+    
+    /**
+    * Writes the in-memory database to a temporary file and renames it over the database file.
+    * Uses VACUUM INTO where SQLite has it, and otherwise copies the schema and rows into an attached file.
+    * Must run on the database thread.
+    * @return true if the snapshot was written or wasn't needed
+    */
+    private boolean snapshot() throws Exception {
+        if (! openInMemory())
+            throw new Exception("The database is not in memory.");
+        if (db.inTransaction()) {
+            debug("Snapshot skipped during a transaction");
+            return false;
+        }
+        String marker = snapshotMarker();
+        if (marker.equals(snapshotMarker)) return true;
+        File dbFile = context.getDatabasePath(dbName);
+        File tmp = new File(dbFile.getPath() + ".snapshot");
+        dbFile.getParentFile().mkdirs();
+        tmp.delete();
+        boolean done = false;
+        try {
+            if (hasVacuumInto())
+                db.execSQL("VACUUM INTO ?", new Object[] {tmp.getPath()});
+            else {
+                db.execSQL("ATTACH DATABASE ? AS snapshot", new Object[] {tmp.getPath()});
+                try {
+                    copyDatabase("main", "snapshot");
+                } finally {
+                    db.execSQL("DETACH DATABASE snapshot");
+                }
+            }
+            FileOutputStream out = new FileOutputStream(tmp, true);
+            try {
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            // a journal or WAL left from using the file directly would be applied to the snapshot
+            new File(dbFile.getPath() + "-journal").delete();
+            new File(dbFile.getPath() + "-wal").delete();
+            new File(dbFile.getPath() + "-shm").delete();
+            if (! tmp.renameTo(dbFile))
+                throw new IOException("Unable to rename " + tmp.getPath() + " to " + dbFile.getPath());
+            done = true;
+        } finally {
+            if (! done) tmp.delete();
+        }
+        snapshotMarker = marker;
+        debug("Snapshot written");
+        return true;
+    }
+    
+    /**
+    * Loads the database file, if it exists, into a new in-memory database.
+    * Must run on the database thread, before the database version is checked.
+    */
+    private void loadSnapshot() {
+        File dbFile = context.getDatabasePath(dbName);
+        if (dbFile.exists()) {
+            db.execSQL("ATTACH DATABASE ? AS snapshot", new Object[] {dbFile.getPath()});
+            try {
+                copyDatabase("snapshot", "main");
+            } finally {
+                db.execSQL("DETACH DATABASE snapshot");
+            }
+            debug("Snapshot loaded");
+        }
+        snapshotMarker = snapshotMarker();
+    }
+    
+    /**
+    * Returns true if SQLite has VACUUM INTO, added in version 3.27.
+    * Must run on the database thread.
+    */
+    private boolean hasVacuumInto() {
+        String[] version = queryString("SELECT sqlite_version()", null).split("\\.");
+        int major = Integer.parseInt(version[0]);
+        int minor = Integer.parseInt(version[1]);
+        return (major > 3) || ((major == 3) && (minor >= 27));
+    }
+    
+    /**
+    * Copies the schema, rows and user version of one attached database into another, empty one.
+    * Virtual tables are created first so the shadow tables they create can be filled like other tables,
+    * and indexes, triggers and views are created after the rows are copied.
+    * Must run on the database thread outside of a transaction.
+    */
+    private void copyDatabase(final String from, final String to) {
+        ArrayList<String[]> objects = new ArrayList<String[]>();
+        Cursor c = db.rawQuery("SELECT type, name, sql FROM " + from + ".sqlite_master WHERE sql IS NOT NULL", null);
+        try {
+            while (c.moveToNext())
+                objects.add(new String[] {c.getString(0), c.getString(1), c.getString(2)});
+        } finally {
+            c.close();
+        }
+        db.beginTransaction();
+        try {
+            db.execSQL("PRAGMA " + to + ".user_version = " + queryString("PRAGMA " + from + ".user_version", null));
+            for (String[] object : objects)
+                if (object[0].equals("table") && VIRTUAL_TABLE_PATTERN.matcher(object[2]).lookingAt())
+                    db.execSQL(qualifySchema(object[2], to));
+            for (String[] object : objects) {
+                if ((! object[0].equals("table")) || VIRTUAL_TABLE_PATTERN.matcher(object[2]).lookingAt()) continue;
+                if (object[1].startsWith("sqlite_")) continue;
+                if (queryString("SELECT name FROM " + to + ".sqlite_master WHERE type = 'table' AND name = ?", new String[] {object[1]}) == null)
+                    db.execSQL(qualifySchema(object[2], to));
+                db.execSQL("INSERT OR REPLACE INTO " + to + "." + quoteName(object[1]) + " SELECT * FROM " + from + "." + quoteName(object[1]));
+            }
+            if (queryString("SELECT name FROM " + from + ".sqlite_master WHERE name = 'sqlite_sequence'", null) != null) {
+                // copying rows into AUTOINCREMENT tables already added sequence rows
+                db.execSQL("DELETE FROM " + to + ".sqlite_sequence");
+                db.execSQL("INSERT INTO " + to + ".sqlite_sequence SELECT * FROM " + from + ".sqlite_sequence");
+            }
+            for (String type : new String[] {"index", "trigger", "view"})
+                for (String[] object : objects)
+                    if (object[0].equals(type))
+                        db.execSQL(qualifySchema(object[2], to));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
     }
-            
+    
+    /**
+    * Adds a schema name to the object created by a CREATE statement from sqlite_master.
+    */
+    private static String qualifySchema(final String sql, final String schema) {
+        Matcher m = CREATE_OBJECT_PATTERN.matcher(sql);
+        if (! m.lookingAt())
+            throw new SQLException("Unable to copy: " + sql);
+        return sql.substring(0, m.end()) + schema + "." + sql.substring(m.end());
+    }
+    
+    //========================================================
+    // Backup methods
+    //
+    
     /**
-    * Closes the database.
+    * Backs up the open database.
+    * @param fileName The name of the backup file
+    * @return true if the backup was successful, false otherwise
     */
-    @SimpleFunction(description = "Closes the database. If the database is already closed, nothing happens. "
-                                + "Any uncommited transactions will be rolled back."
+    @SimpleFunction(description = "Makes a consistent copy of the open database in the specified file without closing it. "
+                                + "The copy is made in a single step, so other database calls wait until it's done. "
+                                + "A transaction can't be open during the backup. "
+                                + "An in-memory database can't be backed up, since its file is only a snapshot. "
+                                + "Returns true if the backup was successful, false otherwise. "
+                                + "A prefix of / specifies a file on the SD card, no prefix specifies a file in the application's private storage."
                     )
-    public void CloseDatabase() {
-        if (db != null) {
-            final DBAsyncTask task = new DBAsyncTask();
-            task.executeAndWait(new DBRunnable() {
-                @Override
-                public void run() {
-                    if (db == null) return;
-                    db.close();
-                    db = null;
-                    dbHelper = null;
-                    task.success = true;
-                }
-            });
-            if (task.success) {
-                debug("Database closed");
-                DatabaseClosed();
+    public boolean BackupDatabase(final String fileName) {
+        if (! checkDB("BackupDatabase")) return false;
+        boolean res = runBackup(new FullBackup(null, new File(resolveFileName(fileName))));
+        if (res)
+            debug("Database backed up");
+        return res;
+    }
+    
+    /**
+    * Backs up the open database, asynchronously, a few pages at a time.
+    * @param tag: The identifier for the result of this operation
+    * @param fileName The name of the backup file
+    * @param pagesPerStep The number of database pages to copy in each step
+    */
+    @SimpleFunction(description = "Makes a consistent copy of the open database in the specified file without closing it, asynchronously. "
+                                + "The database is copied pagesPerStep pages at a time and other database calls are allowed to run between steps. "
+                                + "If the database changes between steps, the copy starts over. "
+                                + "Steps wait while a transaction is open. "
+                                + "The tag identifies the progress of this call in the Progress event and the result in the AfterBackupDatabase event. "
+                                + "See BackupDatabase for more information."
+                    )
+    public void BackupDatabaseAsync(final String tag, final String fileName, final int pagesPerStep) {
+        AsynchUtil.runAsynchronously(new Runnable() {
+            @Override
+            public void run() {
+                boolean res = false;
+                if (checkDB("BackupDatabaseAsync"))
+                    res = runBackupSteps(new FullBackup(tag, new File(resolveFileName(fileName))), Math.max(1, pagesPerStep));
+                if (res)
+                    debug("Database backed up");
+                final boolean result = res;
+                form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        AfterBackupDatabase(tag, result);
+                    }
+                });
             }
-        }
+        });
     }
     
     /**
-    * Indicates if the database has been opened or not.
+    * Writes the pages of the open database that changed since the last incremental backup to a patch file.
+    * @param manifestFileName The name of the manifest file that records the page checksums of the last backup
+    * @param patchFileName The name of the patch file to create
+    * @return the number of pages written to the patch file, or -1 if an error occurred
     */
-    @SimpleFunction(description = "Returns true if the database is open, false otherwise.")
-    public boolean IsDatabaseOpen() {
-        return db != null;
+    @SimpleFunction(description = "Makes an incremental backup of the open database without closing it. "
+                                + "The manifest file holds a checksum of every database page as of the previous incremental backup. "
+                                + "Only the pages whose checksums changed are written to the patch file, and the manifest is updated to match. "
+                                + "If the manifest doesn't exist, every page is written, so the first patch file is a full backup. "
+                                + "Use RestoreIncrementalBackup with all the patch files in order to rebuild the database. "
+                                + "Returns the number of pages written to the patch file, or -1 if an error occurs or the database is not open. "
+                                + "A prefix of / specifies a file on the SD card, no prefix specifies a file in the application's private storage."
+                    )
+    public long IncrementalBackup(final String manifestFileName, final String patchFileName) {
+        if (! checkDB("IncrementalBackup")) return -1;
+        IncrementalBackup backup = new IncrementalBackup(null, new File(resolveFileName(manifestFileName)), new File(resolveFileName(patchFileName)));
+        if (! runBackup(backup)) return -1;
+        debug("IncrementalBackup: " + backup.changedPages + " pages");
+        return backup.changedPages;
     }
     
     /**
-    * Returns the number of tables in the database.
+    * Writes changed pages to a patch file, asynchronously, a few pages at a time.
+    * @param tag: The identifier for the result of this operation
+    * @param manifestFileName The name of the manifest file
+    * @param patchFileName The name of the patch file to create
+    * @param pagesPerStep The number of database pages to check in each step
     */
-    @SimpleFunction(description = "Returns the number of tables in the database, or -1 if an error occurs or the database is not open.")
-    public int TableCount() {
-        if (! checkDB("TableCount")) return -1;
-        final DBAsyncTask task = new DBAsyncTask();
-        task.executeAndWait(new DBRunnable() {
+    @SimpleFunction(description = "Makes an incremental backup of the open database, asynchronously. "
+                                + "The database is checked pagesPerStep pages at a time and other database calls are allowed to run between steps. "
+                                + "The tag identifies the progress of this call in the Progress event and the result in the AfterIncrementalBackup event. "
+                                + "See IncrementalBackup and BackupDatabaseAsync for more information."
+                    )
+    public void IncrementalBackupAsync(final String tag, final String manifestFileName, final String patchFileName, final int pagesPerStep) {
+        AsynchUtil.runAsynchronously(new Runnable() {
             @Override
             public void run() {
-                try {
-                    String sql = "SELECT count(1) FROM sqlite_master WHERE type='table'";
-                    Cursor cursor = db.rawQuery(sql, null);
-                    cursor.moveToNext();
-                    task.count = cursor.getInt(0);
-                    cursor.close();
-                } catch (SQLException e) {
-                    debugException(e);
+                long res = -1;
+                if (checkDB("IncrementalBackupAsync")) {
+                    IncrementalBackup backup = new IncrementalBackup(tag, new File(resolveFileName(manifestFileName)), new File(resolveFileName(patchFileName)));
+                    if (runBackupSteps(backup, Math.max(1, pagesPerStep))) {
+                        res = backup.changedPages;
+                        debug("IncrementalBackup: " + res + " pages");
+                    }
                 }
+                final long result = res;
+                form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        AfterIncrementalBackup(tag, result);
+                    }
+                });
             }
         });
-        return task.count;
     }
     
     /**
-    * Returns a list of names of the tables in the the database.
+    * Rebuilds a database file from a series of patch files.
+    * @param patchFileNames The list of patch files, oldest first
+    * @param fileName The name of the database file to create
+    * @return true if the restore was successful, false otherwise
     */
-    @SimpleFunction(description = "Returns a list of names of the tables in the database, or an empty list if an error occurs or the database is not open.")
-    public YailList TableNames() {
-        if (! checkDB("TableNames")) return YailList.makeEmptyList();
-        final DBAsyncTask task = new DBAsyncTask();
-        task.executeAndWait(new DBRunnable() {
-            @Override
-            public void run() {
+    @SimpleFunction(description = "Rebuilds a complete database file from the patch files written by IncrementalBackup. "
+                                + "The list of patch files must start with the first patch written for the manifest and be in the order they were written. "
+                                + "The result is written to the specified file, which can be imported with ImportDatabase. "
+                                + "Returns true if the restore was successful, false otherwise. "
+                                + "A prefix of / specifies a file on the SD card, no prefix specifies a file in the application's private storage."
+                    )
+    public boolean RestoreIncrementalBackup(final YailList patchFileNames, final String fileName) {
+        File dest = new File(resolveFileName(fileName));
+        File tmp = new File(dest.getPath() + ".tmp");
+        RandomAccessFile out = null;
+        boolean done = false;
+        try {
+            out = new RandomAccessFile(tmp, "rw");
+            out.setLength(0);
+            long pageSize = -1;
+            for (String patchFileName : patchFileNames.toStringArray()) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(resolveFileName(patchFileName)), BLOB_CHUNK_SIZE));
                 try {
-                    String sql = "SELECT name FROM sqlite_master WHERE type='table'";
-                    Cursor cursor = db.rawQuery(sql, null);
-                    task.rows = new ArrayList();
-                    while (cursor.moveToNext())
-                        task.rows.add(cursor.getString(0));
-                    cursor.close();
-                } catch (SQLException e) {
-                    debugException(e);
+                    if (in.readInt() != PATCH_MAGIC)
+                        throw new IOException(patchFileName + " is not a patch file");
+                    long patchPageSize = in.readLong();
+                    long pageCount = in.readLong();
+                    if ((pageSize != -1) && (patchPageSize != pageSize))
+                        throw new IOException(patchFileName + " has a different page size than the previous patch");
+                    pageSize = patchPageSize;
+                    byte[] page = new byte[(int)pageSize];
+                    for (long pageNumber = in.readLong(); pageNumber != -1; pageNumber = in.readLong()) {
+                        in.readFully(page);
+                        out.seek(pageNumber * pageSize);
+                        out.write(page);
+                    }
+                    out.setLength(pageCount * pageSize);
+                } finally {
+                    in.close();
                 }
             }
-        });
-        return YailList.makeList(task.rows);
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (! tmp.renameTo(dest))
+                throw new IOException("Unable to rename " + tmp.getPath() + " to " + dest.getPath());
+            done = true;
+            debug("Incremental backup restored");
+        } catch (IOException e) {
+            debugException(e);
+        } finally {
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {}
+            if (! done) tmp.delete();
+        }
+        return done;
     }
     
     /**
-    * Returns true if the table exists in the database, false otherwise.
+    * Runs a backup in a single database task.
     */
-    @SimpleFunction(description = "Returns true if the table exists in the database, or false if the table does not exist or an error occurs or the database is not open.")
-    public boolean TableExists(final String table) {
-        if (! checkDB("TableExists")) return false;
+    private boolean runBackup(final OnlineBackup backup) {
         final DBAsyncTask task = new DBAsyncTask();
         task.executeAndWait(new DBRunnable() {
             @Override
             public void run() {
                 try {
-                    String sql = "SELECT count(1) FROM sqlite_master WHERE type='table' AND name=?";
-                    Cursor cursor = db.rawQuery(sql, new String[] {table});
-                    cursor.moveToNext();
-                    task.count = cursor.getInt(0);
-                    cursor.close();
-                } catch (SQLException e) {
+                    if (openInMemory())
+                        throw new Exception(IN_MEMORY_BACKUP_ERROR);
+                    if (db.inTransaction())
+                        throw new Exception("Unable to back up the database during a transaction.");
+                    while (! (task.success = backup.step(Long.MAX_VALUE)) && backup.busy)
+                        Thread.sleep(BACKUP_WAIT_DELAY);
+                } catch (Exception e) {
                     debugException(e);
+                } finally {
+                    backup.close();
                 }
             }
         });
-        return task.count == 1;
+        return task.success;
     }
     
     /**
-    * Returns the number of records in a table.
+    * Runs a backup as a series of database tasks so other queued calls can run between steps.
+    * Must not be called on the database thread.
     */
-    @SimpleFunction(description = "Returns the number of rows in a table, or -1 if an error occurs or the database is not open.")
-    public int TableRowCount(final String table) {
-        if (! checkDB("TableRowCount")) return -1;
-        final DBAsyncTask task = new DBAsyncTask();
-        task.executeAndWait(new DBRunnable() {
-            @Override
-            public void run() {
-                try {
-                    String sql = "SELECT count(1) FROM '" + table + "'";
-                    Cursor cursor = db.rawQuery(sql, null);
-                    cursor.moveToNext();
-                    task.count = cursor.getInt(0);
-                    cursor.close();
-                } catch (SQLException e) {
-                    debugException(e);
+    private boolean runBackupSteps(final OnlineBackup backup, final long pagesPerStep) {
+        try {
+            while (true) {
+                final DBAsyncTask task = new DBAsyncTask();
+                task.executeAndWait(new DBRunnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (db == null)
+                                throw new Exception("Database closed during backup.");
+                            if (openInMemory())
+                                throw new Exception(IN_MEMORY_BACKUP_ERROR);
+                            if (db.inTransaction()) {
+                                task.count = 0;             // wait for the transaction to end
+                                return;
+                            }
+                            task.success = backup.step(pagesPerStep);
+                            task.count = backup.busy ? 0 : 1;       // wait for the reader blocking the checkpoint
+                        } catch (Exception e) {
+                            debugException(e);
+                        }
+                    }
+                });
+                if (task.success) return true;
+                if (task.count == -1) return false;
+                if (task.count == 0) {
+                    try {
+                        Thread.sleep(BACKUP_WAIT_DELAY);
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
                 }
             }
-        });
-        return task.count;
+        } finally {
+            backup.close();
+        }
+    }
+    
+    /**
+    * A backup that reads the database file a few pages at a time on the database thread.
+    * Each step runs inside an IMMEDIATE transaction so no other connection can commit while pages are read,
+    * and if the database changed since the previous step the backup starts over, like the SQLite backup API does.
+    */
+    private abstract class OnlineBackup {
+    
+        protected final String tag;
+        private FileInputStream in = null;
+        protected long pageSize;
+        protected long pageCount;
+        private long nextPage;
+        private String marker = null;
+        private int restarts = 0;
+        private int busyCheckpoints = 0;
+        private boolean finished = false;
+        public boolean busy = false;
+        
+        public OnlineBackup(String tag) {
+            this.tag = tag;
+        }
+        
+        /**
+        * Opens the output files at the start (or restart) of the backup.
+        */
+        protected abstract void begin() throws IOException;
+        
+        /**
+        * Handles count pages starting at firstPage.
+        */
+        protected abstract void copy(FileChannel in, long firstPage, long count) throws IOException;
+        
+        /**
+        * Syncs and renames the output files after all pages have been handled.
+        */
+        protected abstract void finish() throws IOException;
+        
+        /**
+        * Closes the output files, deleting them if delete is true.
+        */
+        protected abstract void end(boolean delete);
+        
+        /**
+        * Handles the next pages of the database.
+        * The WAL is checkpointed first so the database file holds every committed page. If a reader blocks the
+        * checkpoint, nothing is copied and busy is set so the caller can wait and try the step again.
+        * Must run on the database thread outside of a transaction.
+        * @return true when the backup is complete
+        */
+        public boolean step(long pages) throws IOException {
+            busy = "1".equals(queryString("PRAGMA wal_checkpoint(FULL)", null));
+            if (busy) {
+                if (++busyCheckpoints >= MAX_BACKUP_BUSY_CHECKPOINTS)
+                    throw new IOException("Unable to checkpoint the database for the backup, it's busy.");
+                return false;
+            }
+            busyCheckpoints = 0;
+            db.beginTransactionNonExclusive();
+            try {
+                String current = changeMarker();
+                if (! current.equals(marker)) {
+                    if (marker != null) {
+                        restarts++;
+                        debug("Database changed, restarting backup");
+                    }
+                    start(current);
+                }
+                if (restarts >= MAX_BACKUP_RESTARTS)
+                    pages = pageCount;              // stop interleaving and finish in this step
+                long count = Math.min(pages, pageCount - nextPage);
+                copy(in.getChannel(), nextPage, count);
+                nextPage += count;
+                progress(tag, nextPage, pageCount);
+            } finally {
+                db.endTransaction();
+            }
+            if (nextPage < pageCount) return false;
+            in.close();
+            in = null;
+            finish();
+            finished = true;
+            return true;
+        }
+        
+        /**
+        * Starts (or restarts) the backup from the first page.
+        */
+        private void start(String current) throws IOException {
+            if (in != null) in.close();
+            end(true);
+            marker = current;
+            pageSize = Long.parseLong(queryString("PRAGMA page_size", null));
+            pageCount = Long.parseLong(queryString("PRAGMA page_count", null));
+            nextPage = 0;
+            in = new FileInputStream(db.getPath());
+            begin();
+        }
+        
+        /**
+        * Returns a value that changes whenever the database is modified.
+        * total_changes() covers rows changed through our connection, schema_version covers DDL,
+        * and data_version covers commits by other connections.
+        */
+        private String changeMarker() {
+            return queryString("SELECT total_changes()", null) + ":"
+                 + queryString("PRAGMA schema_version", null) + ":"
+                 + queryString("PRAGMA data_version", null);
+        }
+        
+        /**
+        * Closes all files, deleting the output files if the backup didn't finish.
+        */
+        public void close() {
+            try {
+                if (in != null) in.close();
+            } catch (IOException e) {}
+            in = null;
+            end(! finished);
+        }
+        
+    }
+    
+    /**
+    * Copies every page of the database to a backup file.
+    */
+    private class FullBackup extends OnlineBackup {
+    
+        private final File dest;
+        private final File tmp;
+        private FileOutputStream out = null;
+        
+        public FullBackup(String tag, File dest) {
+            super(tag);
+            this.dest = dest;
+            tmp = new File(dest.getPath() + ".tmp");
+        }
+        
+        @Override
+        protected void begin() throws IOException {
+            File dir = dest.getParentFile();
+            if ((dir != null) && (! dir.exists()))
+                dir.mkdirs();
+            out = new FileOutputStream(tmp);
+        }
+        
+        @Override
+        protected void copy(FileChannel in, long firstPage, long count) throws IOException {
+            FileChannel fout = out.getChannel();
+            long position = firstPage * pageSize;
+            long length = count * pageSize;
+            long copied = 0;
+            while (copied < length) {
+                long n = in.transferTo(position + copied, length - copied, fout);
+                if (n <= 0)
+                    throw new IOException("Unexpected end of database file");
+                copied += n;
+            }
+        }
+        
+        @Override
+        protected void finish() throws IOException {
+            out.getChannel().force(true);
+            out.close();
+            out = null;
+            if (! tmp.renameTo(dest))
+                throw new IOException("Unable to rename " + tmp.getPath() + " to " + dest.getPath());
+        }
+        
+        @Override
+        protected void end(boolean delete) {
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {}
+            out = null;
+            if (delete) tmp.delete();
+        }
+        
+    }
+    
+    /**
+    * Writes the pages whose checksums differ from the manifest to a patch file, and writes a new manifest.
+    * A manifest is the page size and page count followed by a 64 bit checksum (CRC32 and Adler32) for each page.
+    * A patch is the page size and page count followed by page number and page content pairs, ending with a page number of -1.
+    */
+    private class IncrementalBackup extends OnlineBackup {
+    
+        private final File manifest;
+        private final File patch;
+        private final File manifestTmp;
+        private final File patchTmp;
+        private long[] oldChecksums = null;
+        private DataOutputStream manifestOut = null;
+        private DataOutputStream patchOut = null;
+        public long changedPages;
+        
+        public IncrementalBackup(String tag, File manifest, File patch) {
+            super(tag);
+            this.manifest = manifest;
+            this.patch = patch;
+            manifestTmp = new File(manifest.getPath() + ".tmp");
+            patchTmp = new File(patch.getPath() + ".tmp");
+        }
+        
+        @Override
+        protected void begin() throws IOException {
+            oldChecksums = readManifest();
+            changedPages = 0;
+            File dir = patch.getParentFile();
+            if ((dir != null) && (! dir.exists()))
+                dir.mkdirs();
+            dir = manifest.getParentFile();
+            if ((dir != null) && (! dir.exists()))
+                dir.mkdirs();
+            manifestOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(manifestTmp), BLOB_CHUNK_SIZE));
+            manifestOut.writeInt(MANIFEST_MAGIC);
+            manifestOut.writeLong(pageSize);
+            manifestOut.writeLong(pageCount);
+            patchOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(patchTmp), BLOB_CHUNK_SIZE));
+            patchOut.writeInt(PATCH_MAGIC);
+            patchOut.writeLong(pageSize);
+            patchOut.writeLong(pageCount);
+        }
+        
+        /**
+        * Reads the checksums from the existing manifest.
+        * @return the checksums, or null if there's no manifest or it was made with a different page size
+        */
+        private long[] readManifest() throws IOException {
+            if (! manifest.exists()) return null;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)));
+            try {
+                if (in.readInt() != MANIFEST_MAGIC)
+                    throw new IOException(manifest.getPath() + " is not a manifest file");
+                if (in.readLong() != pageSize) return null;
+                long count = in.readLong();
+                long[] checksums = new long[(int)count];
+                for (int i = 0; i < count; i++)
+                    checksums[i] = in.readLong();
+                return checksums;
+            } finally {
+                in.close();
+            }
+        }
+        
+        @Override
+        protected void copy(FileChannel in, long firstPage, long count) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate((int)pageSize);
+            CRC32 crc = new CRC32();
+            Adler32 adler = new Adler32();
+            for (long pageNumber = firstPage; pageNumber < firstPage + count; pageNumber++) {
+                buf.clear();
+                while (buf.hasRemaining())
+                    if (in.read(buf, pageNumber * pageSize + buf.position()) < 0)
+                        throw new IOException("Unexpected end of database file");
+                crc.reset();
+                crc.update(buf.array(), 0, (int)pageSize);
+                adler.reset();
+                adler.update(buf.array(), 0, (int)pageSize);
+                long checksum = (crc.getValue() << 32) | adler.getValue();
+                manifestOut.writeLong(checksum);
+                if ((oldChecksums == null) || (pageNumber >= oldChecksums.length) || (oldChecksums[(int)pageNumber] != checksum)) {
+                    patchOut.writeLong(pageNumber);
+                    patchOut.write(buf.array(), 0, (int)pageSize);
+                    changedPages++;
+                }
+            }
+        }
+        
+        @Override
+        protected void finish() throws IOException {
+            patchOut.writeLong(-1);
+            patchOut.flush();
+            manifestOut.flush();
+            closeAndSync(patchOut, patchTmp);
+            patchOut = null;
+            closeAndSync(manifestOut, manifestTmp);
+            manifestOut = null;
+            // The patch goes into place first, a manifest newer than its patch would lose pages
+            if (! patchTmp.renameTo(patch))
+                throw new IOException("Unable to rename " + patchTmp.getPath() + " to " + patch.getPath());
+            if (! manifestTmp.renameTo(manifest))
+                throw new IOException("Unable to rename " + manifestTmp.getPath() + " to " + manifest.getPath());
+        }
+        
+        /**
+        * Closes a finished output file and syncs it to storage.
+        */
+        private void closeAndSync(DataOutputStream out, File file) throws IOException {
+            out.close();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+        }
+        
+        @Override
+        protected void end(boolean delete) {
+            try {
+                if (manifestOut != null) manifestOut.close();
+                if (patchOut != null) patchOut.close();
+            } catch (IOException e) {}
+            manifestOut = null;
+            patchOut = null;
+            if (delete) {
+                manifestTmp.delete();
+                patchTmp.delete();
+            }
+        }
+        
     }
 
     //========================================================
@@ -682,6 +5418,9 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
             public void run() {
                 try {
                     db.endTransaction();
+                    invalidateSchema();             // any schema changes may have been rolled back
+                    noteRollback();
+                    task.success = true;
                 } catch (Exception e) {
                     debugException(e);
                 }
@@ -712,7 +5451,7 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
             @Override
             public void run() {
                 try {
-                    db.execSQL(sql, (bindParams == null) ? null : bindParams.toStringArray());
+                    executeStatement(sql, (bindParams == null) ? null : bindParams.toStringArray());
                     task.success = true;
                 } catch (SQLException e) {
                     debugException(e);
@@ -773,50 +5512,16 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
         task.executeAndWait(new DBRunnable() {
             @Override
             public void run() {
+                Profile restore = beginBulkLoad();
                 BufferedReader file = null;
                 task.count = 0;
                 try {
-                    InputStream is = openInputStream(fileName);
-                    file = new BufferedReader(new InputStreamReader(is));
-                    boolean inComment = false;
-                    boolean inLine = false;
-                    String fullLine = "";
-                    
-                    for (String line = file.readLine(); line != null; line = file.readLine()) {
-                        if (inComment) {
-                            if (line.matches("\\*\\/")) {                   // end of multiline comment
-                                line = line.replaceFirst(".*?\\*\\/", "");
-                                inComment = false;
-                            } else
-                                continue;
-                        } else {
-                            line = line.replaceAll("\\/\\*.*?\\*\\/", "");  // remove single line comments
-                            line = line.replaceFirst("--.*$", "");          // remove single line comment
-                            if (line.matches("\\/\\*")) {                   // start of multiline comment
-                                line = line.replaceFirst("\\/\\*.*$", "");
-                                inComment = true;
-                            }
-                        }
-                        
-                        line = line.trim();
-                        if (line.endsWith("\\")) {
-                            inLine = true;
-                            fullLine += line.substring(0, line.length() - 1).trim();
-                            continue;
-                        }
-                        inLine = false;
-                        
-                        fullLine += line;
-                        
-                        if (fullLine.endsWith(";"))
-                            fullLine = fullLine.substring(0, fullLine.length() - 1).trim();
-                        
-                        if (fullLine.length() != 0) {
-                            fullLine = fullLine.replace("\\n", "\n");     // replace \n with actual newline
-                            db.execSQL(fullLine);
-                            task.count++;
-                            fullLine = "";
-                        }
+                    file = new BufferedReader(new InputStreamReader(openInputStream(fileName)));
+                    int[] count = new int[] {0};
+                    try {
+                        executeStatements(file, count);
+                    } finally {
+                        task.count = count[0];
                     }
                 } catch (Exception e) {
                     debugException(e);
@@ -825,6 +5530,7 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
                         try {
                             file.close();
                         } catch (IOException e) {}
+                    endBulkLoad(restore);
                 }
             }
         });
@@ -832,6 +5538,54 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
         return task.count;
     }
     
+    /**
+    * Executes the SQL statements read from a file, in the format described for ExecuteFile.
+    * Must run on the database thread.
+    * @param count: The first element is incremented for each statement executed
+    */
+    private void executeStatements(final BufferedReader file, final int[] count) throws IOException {
+        boolean inComment = false;
+        boolean inLine = false;
+        String fullLine = "";
+        
+        for (String line = file.readLine(); line != null; line = file.readLine()) {
+            if (inComment) {
+                if (line.matches("\\*\\/")) {                   // end of multiline comment
+                    line = line.replaceFirst(".*?\\*\\/", "");
+                    inComment = false;
+                } else
+                    continue;
+            } else {
+                line = line.replaceAll("\\/\\*.*?\\*\\/", "");  // remove single line comments
+                line = line.replaceFirst("--.*$", "");          // remove single line comment
+                if (line.matches("\\/\\*")) {                   // start of multiline comment
+                    line = line.replaceFirst("\\/\\*.*$", "");
+                    inComment = true;
+                }
+            }
+            
+            line = line.trim();
+            if (line.endsWith("\\")) {
+                inLine = true;
+                fullLine += line.substring(0, line.length() - 1).trim();
+                continue;
+            }
+            inLine = false;
+            
+            fullLine += line;
+            
+            if (fullLine.endsWith(";"))
+                fullLine = fullLine.substring(0, fullLine.length() - 1).trim();
+            
+            if (fullLine.length() != 0) {
+                fullLine = fullLine.replace("\\n", "\n");     // replace \n with actual newline
+                executeStatement(fullLine, null);
+                count[0]++;
+                fullLine = "";
+            }
+        }
+    }
+    
     /**
     * Execute multiple SQL statements from a file, asynchronously.
     * @param tag: The identifier for the result of this operation
@@ -876,6 +5630,8 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
             @Override
             public void run() {
                 try {
+                    recordQueryShape(sql);
+                    flushForRead(sql);
                     Cursor cursor = db.rawQuery(sql, (bindParams == null) ? null : bindParams.toStringArray());
                     task.rows = cursorToList(cursor);
                 } catch (SQLException e) {
@@ -883,35 +5639,215 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
                 }
             }
         });
-        debug("SelectSQL: " + task.rows.size() + " rows");
-        return YailList.makeList(task.rows);
+        debug("SelectSQL: " + task.rows.size() + " rows");
+        return YailList.makeList(task.rows);
+    }
+    
+    /**
+    * Execute a single, parameterized SQL SELECT statement, asynchronously.
+    * @param tag: The identifier for the result of this operation
+    * @param sql: The SQL statement
+    * @param bindParams: The list of parameter values to bind
+    */
+    @SimpleFunction(description = "Execute a single, parameterized SQL SELECT statement, asynchronously. "
+                                + "The tag identifies the result of this call in the AfterSelect event. "
+                                + "See SelectSQL for more information."
+                    )
+    public void SelectSQLAsync(final String tag, final String sql, final YailList bindParams) {
+        AsynchUtil.runAsynchronously(new Runnable() {
+            @Override
+            public void run() {
+                final YailList res = SelectSQL(sql, bindParams);
+                form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        AfterSelect(tag, res.size(), res);
+                    }
+                });
+            }
+        });
     }
     
     /**
-    * Execute a single, parameterized SQL SELECT statement, asynchronously.
+    * Execute a single, parameterized SQL SELECT statement and writes the results to a file.
+    * @param sql: The SQL statement
+    * @param bindParams: The list of parameter values to bind
+    * @param fileName: The name of the file
+    * @param format: csv or jsonl
+    * @return the number of rows written, or -1 if an error occurred
+    */
+    @SimpleFunction(description = "Execute a single, parameterized SQL SELECT statement and writes the results to a file, one row at a time, "
+                                + "so results of any size can be written without holding them in memory. "
+                                + "If format is csv, the first line holds the column names and each row is a line of comma separated values, "
+                                + "quoted when needed, with nulls left empty. "
+                                + "If format is jsonl, each row is a line holding a JSON object keyed by column name. "
+                                + "Blobs are written as hex digits, like SQLite's hex() function. "
+                                + "The file is written in one step, so other database calls wait until it's done. "
+                                + "Returns the number of rows written, or -1 if an error occurs or the database is not open. "
+                                + "Prefix the filename with / to write to a specific file on the SD card. "
+                                + "If a filename does not start with a slash, it will be written in the applications private storage (for packaged "
+                                +   "apps) and in /sdcard/AppInventor/data for the Companion."
+                    )
+    public int SelectToFile(final String sql, final YailList bindParams, final String fileName, final String format) {
+        return selectToFile(null, sql, bindParams, fileName, format);
+    }
+    
+    /**
+    * Execute a single, parameterized SQL SELECT statement and writes the results to a file, asynchronously.
     * @param tag: The identifier for the result of this operation
     * @param sql: The SQL statement
     * @param bindParams: The list of parameter values to bind
+    * @param fileName: The name of the file
+    * @param format: csv or jsonl
     */
-    @SimpleFunction(description = "Execute a single, parameterized SQL SELECT statement, asynchronously. "
-                                + "The tag identifies the result of this call in the AfterSelect event. "
-                                + "See SelectSQL for more information."
+    @SimpleFunction(description = "Execute a single, parameterized SQL SELECT statement and writes the results to a file, asynchronously. "
+                                + "The file is written in one step, so it matches a single point in time and other database calls wait until it's done. "
+                                + "The Progress event fires with the tag and the number of rows written so far every " + SELECT_TO_FILE_PROGRESS_ROWS + " rows. "
+                                + "The tag identifies the result of this call in the AfterSelectToFile event. "
+                                + "See SelectToFile for more information."
                     )
-    public void SelectSQLAsync(final String tag, final String sql, final YailList bindParams) {
+    public void SelectToFileAsync(final String tag, final String sql, final YailList bindParams, final String fileName, final String format) {
         AsynchUtil.runAsynchronously(new Runnable() {
             @Override
             public void run() {
-                final YailList res = SelectSQL(sql, bindParams);
+                final int res = selectToFile(tag, sql, bindParams, fileName, format);
                 form.runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        AfterSelect(tag, res.size(), res);
+                        AfterSelectToFile(tag, res);
                     }
                 });
             }
         });
     }
     
+    /**
+    * Streams the results of a query to a file in a single database task, so no other call can change the rows
+    * while the cursor reads them.
+    * @param tag: The progress tag, or null for no progress events
+    */
+    private int selectToFile(final String tag, final String sql, final YailList bindParams, final String fileName, final String format) {
+        if (! checkDB("SelectToFile")) return -1;
+        final boolean json = format.trim().equalsIgnoreCase("jsonl");
+        if ((! json) && (! format.trim().equalsIgnoreCase("csv"))) {
+            debugException(new Exception("Unknown file format: " + format));
+            return -1;
+        }
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                Writer out = null;
+                Cursor cursor = null;
+                int rows = 0;
+                try {
+                    recordQueryShape(sql);
+                    flushForRead(sql);
+                    cursor = db.rawQuery(sql, (bindParams == null) ? null : bindParams.toStringArray());
+                    String[] columnNames = cursor.getColumnNames();
+                    out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(resolveFileName(fileName)), "UTF-8"), FILE_BUFFER_SIZE);
+                    if (! json) {
+                        for (int i = 0; i < columnNames.length; i++) {
+                            if (i > 0) out.write(',');
+                            out.write(csvValue(columnNames[i]));
+                        }
+                        out.write('\n');
+                    }
+                    while (cursor.moveToNext()) {
+                        if (json) out.write('{');
+                        for (int i = 0; i < columnNames.length; i++) {
+                            if (i > 0) out.write(',');
+                            if (json) {
+                                out.write(jsonString(columnNames[i]));
+                                out.write(':');
+                            }
+                            switch (cursor.getType(i)) {
+                                case Cursor.FIELD_TYPE_NULL:
+                                    if (json) out.write("null");
+                                    break;
+                                case Cursor.FIELD_TYPE_INTEGER:
+                                    out.write(Long.toString(cursor.getLong(i)));
+                                    break;
+                                case Cursor.FIELD_TYPE_FLOAT:
+                                    double d = cursor.getDouble(i);
+                                    out.write((json && (Double.isNaN(d) || Double.isInfinite(d))) ? "null" : Double.toString(d));
+                                    break;
+                                case Cursor.FIELD_TYPE_BLOB:
+                                    String blob = hexString(cursor.getBlob(i));
+                                    out.write(json ? jsonString(blob) : blob);
+                                    break;
+                                default:
+                                    out.write(json ? jsonString(cursor.getString(i)) : csvValue(cursor.getString(i)));
+                            }
+                        }
+                        out.write(json ? "}\n" : "\n");
+                        rows++;
+                        if ((rows % SELECT_TO_FILE_PROGRESS_ROWS) == 0)
+                            progress(tag, rows, -1);
+                    }
+                    out.close();
+                    out = null;
+                    task.count = rows;
+                } catch (Exception e) {
+                    debugException(e);
+                } finally {
+                    if (cursor != null) cursor.close();
+                    try {
+                        if (out != null) out.close();
+                    } catch (IOException e) {}
+                }
+            }
+        });
+        debug("SelectToFile: " + task.count + " rows");
+        return task.count;
+    }
+    
+    /**
+    * Returns the bytes of a blob as upper case hex digits, like SQLite's hex() function.
+    */
+    private static String hexString(final byte[] value) {
+        final char[] digits = "0123456789ABCDEF".toCharArray();
+        char[] chars = new char[value.length * 2];
+        for (int i = 0; i < value.length; i++) {
+            chars[i * 2] = digits[(value[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = digits[value[i] & 0xf];
+        }
+        return new String(chars);
+    }
+    
+    /**
+    * Returns a value for a CSV file, quoted if it holds a comma, quote or line break.
+    */
+    private static String csvValue(final String value) {
+        if ((value.indexOf(',') == -1) && (value.indexOf('"') == -1) && (value.indexOf('\n') == -1) && (value.indexOf('\r') == -1))
+            return value;
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+    
+    /**
+    * Returns a quoted JSON string.
+    */
+    private static String jsonString(final String value) {
+        StringBuilder b = new StringBuilder(value.length() + 2);
+        b.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': b.append("\\\""); break;
+                case '\\': b.append("\\\\"); break;
+                case '\n': b.append("\\n"); break;
+                case '\r': b.append("\\r"); break;
+                case '\t': b.append("\\t"); break;
+                default:
+                    if (c < 0x20)
+                        b.append(String.format("\\u%04x", (int)c));
+                    else
+                        b.append(c);
+            }
+        }
+        return b.append('"').toString();
+    }
+    
     /**
     * Executes a SQL SELECT statement.
     * @param table: The table
@@ -952,6 +5888,15 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
             @Override
             public void run() {
                 try {
+                    if (indexAdvisor)
+                        recordQueryShape(SQLiteQueryBuilder.buildQueryString(distinct, quoteName(table),
+                                                                             columns.toStringArray(),
+                                                                             (whereClause == "") ?  null : whereClause,
+                                                                             (groupBy == "") ? null : groupBy,
+                                                                             (having == "") ? null : having,
+                                                                             (orderBy == "") ? null : orderBy,
+                                                                             (limit == "") ? null : limit));
+                    flushForRead(quoteName(table));
                     Cursor cursor = db.query(distinct, table,
                                                 columns.toStringArray(),
                                                 (whereClause == "") ?  null : whereClause,
@@ -1036,6 +5981,8 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
             public void run() {
                 try {
                     task.id = db.insert(table, null, makeContentValues(columns, values));
+                    if (task.id != -1)
+                        noteWrite(table, "insert", 1);
                 } catch (SQLException e) {
                     debugException(e);
                 }
@@ -1082,6 +6029,9 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
                                 + "Empty lines are ignored. "
                                 + "Line continuation using '\\' is supported. "
                                 + "'\\n' are replaced with actual newlines. "
+                                + "If the first line starts with {, the file is read as JSON Lines instead: each line is a JSON object whose keys are column names, "
+                                +   "with true and false inserted as 1 and 0 and nested objects and arrays inserted as JSON text. "
+                                + "The file is read and parsed on background threads while rows are inserted, in transactions of " + INSERT_FILE_CHUNK_LINES + " rows. "
                                 + "Insertion stops at the first error. "
                                 + "If the database is not open, -1 is returned. "
                                 + "Prefix the filename with / to read from a specific file on the SD card. "
@@ -1096,50 +6046,52 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
         task.executeAndWait(new DBRunnable() {
             @Override
             public void run() {
-                BufferedReader file = null;
+                Profile restore = beginBulkLoad();
+                FileImport file = null;
+                HashMap<List<String>, SQLiteStatement> statements = new HashMap<List<String>, SQLiteStatement>();
                 task.count = 0;
                 try {
-                    InputStream is = openInputStream(fileName);
-                    file = new BufferedReader(new InputStreamReader(is));
-                    boolean inLine = false;
-                    String fullLine = "";
-                    String[] columnNames = null;
-                    
-                    for (String line = file.readLine(); line != null; line = file.readLine()) {
-                        line = line.trim();
-                        if (line.endsWith("\\")) {
-                            inLine = true;
-                            fullLine += line.substring(0, line.length() - 1).trim();
-                            continue;
-                        }
-                        inLine = false;
-                        
-                        fullLine += line;
-                        
-                        if (fullLine.length() != 0) {
-                            
-                            if (columnNames == null)
-                                columnNames = fullLine.split("\\s*,\\s*");
-                            else {
-                                fullLine = fullLine.replace("\\n", "\n");     // replace \n with actual newline
-                                String[] values = fullLine.split("\\s*,\\s*");
-                                ContentValues contentValues = new ContentValues();
-                                for (int i = 0; i < columnNames.length; i++) {
-                                    contentValues.put(columnNames[i], values[i]);
+                    file = new FileImport(new BufferedReader(new InputStreamReader(openInputStream(fileName)), FILE_BUFFER_SIZE));
+                    for (RowBatch batch = file.next(); batch != null; batch = file.next()) {
+                        db.beginTransaction();
+                        try {
+                            for (int i = 0; i < batch.values.size(); i++) {
+                                String[] columns = batch.columns.get(i);
+                                Object[] values = batch.values.get(i);
+                                List<String> key = Arrays.asList(columns);
+                                SQLiteStatement statement = statements.get(key);
+                                if (statement == null) {
+                                    statement = db.compileStatement(insertStatement(table, columns));
+                                    statements.put(key, statement);
                                 }
-                                db.insert(table, null, contentValues);
+                                for (int c = 0; c < values.length; c++) {
+                                    Object value = values[c];
+                                    if (value == null)
+                                        statement.bindNull(c + 1);
+                                    else if (value instanceof Long)
+                                        statement.bindLong(c + 1, (Long)value);
+                                    else if (value instanceof Double)
+                                        statement.bindDouble(c + 1, (Double)value);
+                                    else
+                                        statement.bindString(c + 1, value.toString());
+                                }
+                                statement.executeInsert();
                                 task.count++;
                             }
-                            fullLine = "";
+                        } finally {
+                            db.setTransactionSuccessful();          // keep the rows inserted before an error
+                            db.endTransaction();
                         }
                     }
                 } catch (Exception e) {
                     debugException(e);
                 } finally {
+                    noteWrite(table, "insert", task.count);
+                    for (SQLiteStatement statement : statements.values())
+                        statement.close();
                     if (file != null)
-                        try {
-                            file.close();
-                        } catch (IOException e) {}
+                        file.close();
+                    endBulkLoad(restore);
                 }
             }
         });
@@ -1172,6 +6124,199 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
         });
     }
     
+    /**
+    * Returns an INSERT statement for a table with a parameter for each column.
+    */
+    private static String insertStatement(final String table, final String[] columns) {
+        StringBuilder names = new StringBuilder();
+        StringBuilder params = new StringBuilder();
+        for (String column : columns) {
+            if (names.length() > 0) {
+                names.append(", ");
+                params.append(", ");
+            }
+            names.append(quoteName(column));
+            params.append("?");
+        }
+        return "INSERT INTO " + quoteName(table) + " (" + names + ") VALUES (" + params + ")";
+    }
+    
+    /**
+    * Rows parsed from a chunk of an InsertFile file, with the columns of each row.
+    */
+    private static class RowBatch {
+        public final ArrayList<String[]> columns = new ArrayList<String[]>();
+        public final ArrayList<Object[]> values = new ArrayList<Object[]>();
+    }
+    
+    /**
+    * Reads and parses an InsertFile file in the background, so the database thread only inserts.
+    * One thread reads lines and cuts them into chunks, a pool of parsers turns each chunk into rows, and
+    * next() hands out the parsed chunks in file order. The queue of chunks in flight is bounded, so the reader
+    * waits when the parsers or the database fall behind.
+    */
+    private static class FileImport {
+    
+        private final BufferedReader reader;
+        private final ExecutorService executor;
+        private final ArrayBlockingQueue<Future<RowBatch>> chunks;
+        private volatile boolean stopped = false;
+        
+        public FileImport(BufferedReader reader) {
+            this.reader = reader;
+            int parsers = Math.max(1, Math.min(INSERT_FILE_MAX_PARSERS, Runtime.getRuntime().availableProcessors() - 1));
+            executor = Executors.newFixedThreadPool(parsers + 1);
+            chunks = new ArrayBlockingQueue<Future<RowBatch>>(parsers * 2);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            });
+        }
+        
+        /**
+        * Returns the next chunk of rows in file order, or null at the end of the file.
+        * Throws the error that stopped reading or parsing.
+        */
+        public RowBatch next() throws Exception {
+            Future<RowBatch> chunk = chunks.take();
+            try {
+                return chunk.get();
+            } catch (ExecutionException e) {
+                Throwable t = e.getCause();
+                throw (t instanceof Exception) ? (Exception)t : e;
+            }
+        }
+        
+        public void close() {
+            stopped = true;
+            executor.shutdownNow();
+            chunks.clear();
+            try {
+                reader.close();
+            } catch (IOException e) {}
+        }
+        
+        /**
+        * Reads the file, joining continued lines and skipping empty ones, and queues the lines for parsing a chunk at a time.
+        * The file is JSON Lines if its first line starts with {, and CSV with a line of column names otherwise.
+        */
+        private void read() {
+            try {
+                ArrayList<String> lines = new ArrayList<String>();
+                String[] columnNames = null;
+                boolean json = false;
+                boolean first = true;
+                String fullLine = "";
+                for (String line = reader.readLine(); (line != null) && (! stopped); line = reader.readLine()) {
+                    line = line.trim();
+                    if (line.endsWith("\\")) {
+                        fullLine += line.substring(0, line.length() - 1).trim();
+                        continue;
+                    }
+                    fullLine += line;
+                    if (fullLine.length() == 0) continue;
+                    if (first) {
+                        first = false;
+                        json = fullLine.startsWith("{");
+                        if (! json) {
+                            columnNames = fullLine.split("\\s*,\\s*");
+                            fullLine = "";
+                            continue;
+                        }
+                    }
+                    lines.add(fullLine);
+                    fullLine = "";
+                    if (lines.size() == INSERT_FILE_CHUNK_LINES) {
+                        parse(lines, columnNames, json);
+                        lines = new ArrayList<String>();
+                    }
+                }
+                if (! lines.isEmpty())
+                    parse(lines, columnNames, json);
+                finish(null);
+            } catch (InterruptedException e) {
+                // closed
+            } catch (Exception e) {
+                finish(e);
+            }
+        }
+        
+        /**
+        * Queues a chunk of lines for a parser. The chunk takes its place in the queue before it's parsed so
+        * chunks come out in file order.
+        */
+        private void parse(final ArrayList<String> lines, final String[] columnNames, final boolean json) throws InterruptedException {
+            FutureTask<RowBatch> chunk = new FutureTask<RowBatch>(new Callable<RowBatch>() {
+                @Override
+                public RowBatch call() throws Exception {
+                    return json ? parseJSON(lines) : parseCSV(lines, columnNames);
+                }
+            });
+            chunks.put(chunk);
+            executor.execute(chunk);
+        }
+        
+        /**
+        * Queues the end of the file, or the error that stopped reading it.
+        */
+        private void finish(final Exception error) {
+            FutureTask<RowBatch> end = new FutureTask<RowBatch>(new Callable<RowBatch>() {
+                @Override
+                public RowBatch call() throws Exception {
+                    if (error != null) throw error;
+                    return null;
+                }
+            });
+            end.run();
+            try {
+                chunks.put(end);
+            } catch (InterruptedException e) {}
+        }
+        
+        private static RowBatch parseCSV(final ArrayList<String> lines, final String[] columnNames) throws Exception {
+            RowBatch batch = new RowBatch();
+            for (String line : lines) {
+                String[] values = line.replace("\\n", "\n").split("\\s*,\\s*");     // replace \n with actual newline
+                if (values.length < columnNames.length)
+                    throw new Exception("Expected " + columnNames.length + " values: " + line);
+                batch.columns.add(columnNames);
+                batch.values.add(Arrays.copyOf((Object[])values, columnNames.length));
+            }
+            return batch;
+        }
+        
+        private static RowBatch parseJSON(final ArrayList<String> lines) throws Exception {
+            RowBatch batch = new RowBatch();
+            for (String line : lines) {
+                JSONObject object = new JSONObject(line);
+                ArrayList<String> columns = new ArrayList<String>();
+                ArrayList<Object> values = new ArrayList<Object>();
+                for (Iterator<String> keys = object.keys(); keys.hasNext(); ) {
+                    String key = keys.next();
+                    Object value = object.get(key);
+                    if (value == JSONObject.NULL)
+                        value = null;
+                    else if (value instanceof Boolean)
+                        value = ((Boolean)value) ? 1L : 0L;
+                    else if ((value instanceof Integer) || (value instanceof Long))
+                        value = ((Number)value).longValue();
+                    else if (value instanceof Number)
+                        value = ((Number)value).doubleValue();
+                    else if (! (value instanceof String))
+                        value = value.toString();               // nested objects and arrays are stored as JSON text
+                    columns.add(key);
+                    values.add(value);
+                }
+                batch.columns.add(columns.toArray(new String[0]));
+                batch.values.add(values.toArray());
+            }
+            return batch;
+        }
+        
+    }
+    
     /**
     * Executes a SQL REPLACE statement.
     * @param table: Table name
@@ -1193,6 +6338,8 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
             public void run() {
                 try {
                     task.id = db.replace(table, null, makeContentValues(columns, values));
+                    if (task.id != -1)
+                        noteWrite(table, "replace", 1);
                 } catch (SQLException e) {
                     debugException(e);
                 }
@@ -1254,7 +6401,10 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
             @Override
             public void run() {
                 try {
+                    if (indexAdvisor && (whereClause != null) && (whereClause != ""))
+                        recordQueryShape("SELECT 1 FROM " + quoteName(table) + " WHERE " + whereClause);
                     task.count = db.update(table, makeContentValues(columns, values), (whereClause == "") ? null : whereClause, bindParams.toStringArray());
+                    noteWrite(table, "update", task.count);
                 } catch (SQLException e) {
                     debugException(e);
                 }
@@ -1263,98 +6413,358 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
         debug("Update: " + table + " " + task.count + " rows");
         return task.count;
     }
-    
+    
+    /**
+    * Executes a SQL UPDATE statement, asynchronously.
+    * @param tag: The identifier for the result of this operation
+    * @param table: Table name
+    * @param columns: List of column names
+    * @param values: List of column values
+    * @param whereClause: The optional WHERE clause. Passing null or an empty string will update all rows.
+    * @param bindParams: The list of parameter values to bind
+    * @return the number of rows affected
+    */
+    @SimpleFunction(description = "Executes a SQL UPDATE statement, asynchronously. "
+                                + "The tag identifies the result of this call in the AfterUpdate event. "
+                                + "See Update for more information."
+                    )
+    public void UpdateAsync(final String tag, final String table, final YailList columns, final YailList values, final String whereClause, final YailList bindParams) {
+        AsynchUtil.runAsynchronously(new Runnable() {
+            @Override
+            public void run() {
+                final int res = Update(table, columns, values, whereClause, bindParams);
+                form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        AfterUpdate(tag, res);
+                    }
+                });
+            }
+        });
+    }
+    
+    
+    /**
+    * Executes a SQL DELETE statement.
+    * @param table: Table name
+    * @param whereClause: The optional WHERE clause. Passing null or an empty string will delete all rows.
+    * @param bindParams: The list of parameter values to bind
+    * @return the number of rows affected if a whereClause is passed in, 0 otherwise. To remove all rows and get a count pass "1" as the whereClause. 
+    */
+    @SimpleFunction(description = "Executes a SQL DELETE statement. "
+                                + "There whereClause is optional. "
+                                + "All rows in the table will be deleted if no whereClause is specified. "
+                                + "Each bind parameter replaces the corresponding '?' in whereClause. "
+                                + "Returns the number of rows affected if a whereClause is passed in, 0 otherwise."
+                                + "If an error occurs or the database is not open, -1 is returned."
+                    )
+    public int Delete(final String table, final String whereClause, final YailList bindParams) {
+        if (! checkDB("Delete")) return -1;
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
+            @Override
+            public void run() {
+                try {
+                    if (indexAdvisor && (whereClause != null) && (whereClause != ""))
+                        recordQueryShape("SELECT 1 FROM " + quoteName(table) + " WHERE " + whereClause);
+                    task.count = db.delete(table, (whereClause == "") ? null : whereClause, bindParams.toStringArray());
+                    noteWrite(table, "delete", task.count);
+                } catch (SQLException e) {
+                    debugException(e);
+                }
+            }
+        });
+        if ((task.count == 0) && ((whereClause == null) || (whereClause == "")))
+            debug("Delete: " + table + " all rows");
+        else
+            debug("Delete: " + table + " " + task.count + " rows");
+        return task.count;
+    }
+
+    /**
+    * Executes a SQL DELETE statement, asynchronously.
+    * @param tag: The identifier for the result of this operation
+    * @param table: Table name
+    * @param whereClause: The optional WHERE clause. Passing null or an empty string will delete all rows.
+    * @param bindParams: The list of parameter values to bind
+    * @return the number of rows affected if a whereClause is passed in, 0 otherwise. To remove all rows and get a count pass "1" as the whereClause. 
+    */
+    @SimpleFunction(description = "Executes a SQL DELETE statement. "
+                                + "The tag identifies the result of this call in the AfterDelete event. "
+                                + "See Delete for more information."
+                    )
+    public void DeleteAsync(final String tag, final String table, final String whereClause, final YailList bindParams) {
+        AsynchUtil.runAsynchronously(new Runnable() {
+            @Override
+            public void run() {
+                final int res = Delete(table, whereClause, bindParams);
+                form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        AfterDelete(tag, res);
+                    }
+                });
+            }
+        });
+    }
+
+    //========================================================
+    // Blob methods
+    //
+
+    /**
+    * Writes the contents of a file into a blob column of a single row.
+    * @param table: Table name
+    * @param column: Blob column name
+    * @param rowId: The row ID of the row to update
+    * @param fileName The name of the file
+    * @return the number of bytes written, or -1 if an error occurred
+    */
+    @SimpleFunction(description = "Writes the contents of a file into a blob column of the row with the specified row ID. "
+                                + "The file is stored in fixed size chunks, one row each in the " + BLOB_CHUNKS_TABLE + " table, "
+                                +   "so memory use stays the same no matter how large the file is. "
+                                + "The column itself is set to null; use ReadBlobToFile to read the blob back. "
+                                + "The chunks are deleted with the row, and replaced when the column is written again. "
+                                + "Returns the number of bytes written. "
+                                + "If an error occurs, the row doesn't exist, or the database is not open, -1 is returned. "
+                                + "See InsertFile for a description of file name prefixes."
+                    )
+    public long WriteBlobFromFile(final String table, final String column, final long rowId, final String fileName) {
+        return writeBlobFromFile(null, table, column, rowId, fileName);
+    }
+
+    /**
+    * Writes the contents of a file into a blob column of a single row, asynchronously.
+    * @param tag: The identifier for the result of this operation
+    * @param table: Table name
+    * @param column: Blob column name
+    * @param rowId: The row ID of the row to update
+    * @param fileName The name of the file
+    */
+    @SimpleFunction(description = "Writes the contents of a file into a blob column, asynchronously. "
+                                + "The tag identifies the progress of this call in the Progress event and the result in the AfterWriteBlob event. "
+                                + "See WriteBlobFromFile for more information."
+                    )
+    public void WriteBlobFromFileAsync(final String tag, final String table, final String column, final long rowId, final String fileName) {
+        AsynchUtil.runAsynchronously(new Runnable() {
+            @Override
+            public void run() {
+                final long res = writeBlobFromFile(tag, table, column, rowId, fileName);
+                form.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        AfterWriteBlob(tag, res);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+    * Reads a blob column of a single row into a file.
+    * @param table: Table name
+    * @param column: Blob column name
+    * @param rowId: The row ID of the row to read
+    * @param fileName The name of the file
+    * @return the number of bytes read, or -1 if an error occurred
+    */
+    @SimpleFunction(description = "Reads a blob column of the row with the specified row ID into a file. "
+                                + "A blob written by WriteBlobFromFile is read one stored chunk at a time, so memory use stays the same no matter how large it is. "
+                                + "A value stored in the column some other way is read in chunks too, but SQLite loads the whole value again for each one, "
+                                +   "so this is only suited to values of a few megabytes. "
+                                + "The file is written under a temporary name and renamed once it's complete, so an error doesn't leave a partial file. "
+                                + "Returns the number of bytes read. "
+                                + "If an error occurs, the row doesn't exist, or the database is not open, -1 is returned. "
+                                + "A prefix of / specifies a file on the SD card, no prefix specifies a file in the application's private storage."
+                    )
+    public long ReadBlobToFile(final String table, final String column, final long rowId, final String fileName) {
+        return readBlobToFile(null, table, column, rowId, fileName);
+    }
+
     /**
-    * Executes a SQL UPDATE statement, asynchronously.
+    * Reads a blob column of a single row into a file, asynchronously.
     * @param tag: The identifier for the result of this operation
     * @param table: Table name
-    * @param columns: List of column names
-    * @param values: List of column values
-    * @param whereClause: The optional WHERE clause. Passing null or an empty string will update all rows.
-    * @param bindParams: The list of parameter values to bind
-    * @return the number of rows affected
+    * @param column: Blob column name
+    * @param rowId: The row ID of the row to read
+    * @param fileName The name of the file
     */
-    @SimpleFunction(description = "Executes a SQL UPDATE statement, asynchronously. "
-                                + "The tag identifies the result of this call in the AfterUpdate event. "
-                                + "See Update for more information."
+    @SimpleFunction(description = "Reads a blob column into a file, asynchronously. "
+                                + "The tag identifies the progress of this call in the Progress event and the result in the AfterReadBlob event. "
+                                + "See ReadBlobToFile for more information."
                     )
-    public void UpdateAsync(final String tag, final String table, final YailList columns, final YailList values, final String whereClause, final YailList bindParams) {
+    public void ReadBlobToFileAsync(final String tag, final String table, final String column, final long rowId, final String fileName) {
         AsynchUtil.runAsynchronously(new Runnable() {
             @Override
             public void run() {
-                final int res = Update(table, columns, values, whereClause, bindParams);
+                final long res = readBlobToFile(tag, table, column, rowId, fileName);
                 form.runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        AfterUpdate(tag, res);
+                        AfterReadBlob(tag, res);
                     }
                 });
             }
         });
     }
-    
-    
+
     /**
-    * Executes a SQL DELETE statement.
-    * @param table: Table name
-    * @param whereClause: The optional WHERE clause. Passing null or an empty string will delete all rows.
-    * @param bindParams: The list of parameter values to bind
-    * @return the number of rows affected if a whereClause is passed in, 0 otherwise. To remove all rows and get a count pass "1" as the whereClause. 
+    * Streams a file into chunk rows for a blob column, one chunk at a time, inside a single transaction.
+    * A trigger deletes the chunks with their row.
+    * @param tag: The progress tag, or null for no progress events
     */
-    @SimpleFunction(description = "Executes a SQL DELETE statement. "
-                                + "There whereClause is optional. "
-                                + "All rows in the table will be deleted if no whereClause is specified. "
-                                + "Each bind parameter replaces the corresponding '?' in whereClause. "
-                                + "Returns the number of rows affected if a whereClause is passed in, 0 otherwise."
-                                + "If an error occurs or the database is not open, -1 is returned."
-                    )
-    public int Delete(final String table, final String whereClause, final YailList bindParams) {
-        if (! checkDB("Delete")) return -1;
+    private long writeBlobFromFile(final String tag, final String table, final String column, final long rowId, final String fileName) {
+        if (! checkDB("WriteBlobFromFile")) return -1;
         final DBAsyncTask task = new DBAsyncTask();
         task.executeAndWait(new DBRunnable() {
             @Override
             public void run() {
+                InputStream is = null;
+                SQLiteStatement stmt = null;
+                long total = inputLength(fileName);
+                long done = 0;
+                boolean created = ! hasTable(BLOB_CHUNKS_TABLE);
+                db.beginTransaction();
                 try {
-                    task.count = db.delete(table, (whereClause == "") ? null : whereClause, bindParams.toStringArray());
-                } catch (SQLException e) {
+                    is = openInputStream(fileName);
+                    String name = table.toLowerCase();
+                    Object[] key = new Object[] {name, column.toLowerCase(), rowId};
+                    db.execSQL("CREATE TABLE IF NOT EXISTS " + BLOB_CHUNKS_TABLE
+                             + " (tbl TEXT NOT NULL, col TEXT NOT NULL, owner INTEGER NOT NULL, seq INTEGER NOT NULL, data BLOB NOT NULL,"
+                             + " PRIMARY KEY (tbl, col, owner, seq))");
+                    db.execSQL("CREATE TRIGGER IF NOT EXISTS " + quoteName(BLOB_CHUNKS_TABLE + "_" + name + "_delete")
+                             + " AFTER DELETE ON " + quoteName(table)
+                             + " BEGIN DELETE FROM " + BLOB_CHUNKS_TABLE + " WHERE tbl = " + quoteLiteral(name) + " AND owner = old.rowid; END");
+                    db.execSQL("DELETE FROM " + BLOB_CHUNKS_TABLE + " WHERE tbl = ? AND col = ? AND owner = ?", key);
+                    
+                    // the column is cleared so a stale value isn't read instead of the chunks
+                    stmt = db.compileStatement("UPDATE " + quoteName(table) + " SET " + quoteName(column) + " = NULL WHERE rowid = ?");
+                    stmt.bindLong(1, rowId);
+                    if (stmt.executeUpdateDelete() != 1)
+                        throw new SQLException("No row with row ID " + rowId + " in " + table);
+                    stmt.close();
+                    
+                    stmt = db.compileStatement("INSERT INTO " + BLOB_CHUNKS_TABLE + " (tbl, col, owner, seq, data) VALUES (?, ?, ?, ?, ?)");
+                    stmt.bindString(1, name);
+                    stmt.bindString(2, column.toLowerCase());
+                    stmt.bindLong(3, rowId);
+                    byte[] buf = new byte[BLOB_CHUNK_SIZE];
+                    int len;
+                    long seq = 0;
+                    while ((len = readFully(is, buf)) > 0) {
+                        stmt.bindLong(4, seq++);
+                        stmt.bindBlob(5, (len == buf.length) ? buf : Arrays.copyOf(buf, len));
+                        stmt.executeInsert();
+                        done += len;
+                        progress(tag, done, total);
+                    }
+                    db.setTransactionSuccessful();
+                    noteWrite(table, "update", 1);
+                    task.id = done;
+                } catch (Exception e) {
                     debugException(e);
+                } finally {
+                    db.endTransaction();
+                    if (task.id == -1)
+                        noteRollback();
+                    if (created)
+                        invalidateSchema();
+                    if (stmt != null) stmt.close();
+                    try {
+                        if (is != null) is.close();
+                    } catch (IOException e) {}
                 }
             }
         });
-        if ((task.count == 0) && ((whereClause == null) || (whereClause == "")))
-            debug("Delete: " + table + " all rows");
-        else
-            debug("Delete: " + table + " " + task.count + " rows");
-        return task.count;
+        debug("WriteBlobFromFile: " + table + " " + task.id + " bytes");
+        return task.id;
     }
 
     /**
-    * Executes a SQL DELETE statement, asynchronously.
-    * @param tag: The identifier for the result of this operation
-    * @param table: Table name
-    * @param whereClause: The optional WHERE clause. Passing null or an empty string will delete all rows.
-    * @param bindParams: The list of parameter values to bind
-    * @return the number of rows affected if a whereClause is passed in, 0 otherwise. To remove all rows and get a count pass "1" as the whereClause. 
+    * Streams a blob column into a file, one chunk row at a time for blobs written by writeBlobFromFile.
+    * Other values are read with substr(), which loads the whole value for every chunk because Android doesn't
+    * expose SQLite's incremental blob I/O.
+    * The file is written under a temporary name and renamed once it's complete.
+    * @param tag: The progress tag, or null for no progress events
     */
-    @SimpleFunction(description = "Executes a SQL DELETE statement. "
-                                + "The tag identifies the result of this call in the AfterDelete event. "
-                                + "See Delete for more information."
-                    )
-    public void DeleteAsync(final String tag, final String table, final String whereClause, final YailList bindParams) {
-        AsynchUtil.runAsynchronously(new Runnable() {
+    private long readBlobToFile(final String tag, final String table, final String column, final long rowId, final String fileName) {
+        if (! checkDB("ReadBlobToFile")) return -1;
+        final DBAsyncTask task = new DBAsyncTask();
+        task.executeAndWait(new DBRunnable() {
             @Override
             public void run() {
-                final int res = Delete(table, whereClause, bindParams);
-                form.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        AfterDelete(tag, res);
+                OutputStream os = null;
+                Cursor cursor = null;
+                File dest = new File(resolveFileName(fileName));
+                File tmp = new File(dest.getPath() + ".tmp");
+                try {
+                    String from = " FROM " + quoteName(table) + " WHERE rowid = ?";
+                    String[] args = new String[] {String.valueOf(rowId)};
+                    cursor = db.rawQuery("SELECT length(CAST(" + quoteName(column) + " AS BLOB))" + from, args);
+                    if (! cursor.moveToNext())
+                        throw new SQLException("No row with row ID " + rowId + " in " + table);
+                    long total = cursor.getLong(0);
+                    cursor.close();
+                    cursor = null;
+                    
+                    String sql = null;
+                    String[] key = new String[] {table.toLowerCase(), column.toLowerCase(), String.valueOf(rowId), null};
+                    if (hasTable(BLOB_CHUNKS_TABLE)) {
+                        String chunks = BLOB_CHUNKS_TABLE + " WHERE tbl = ? AND col = ? AND owner = ?";
+                        cursor = db.rawQuery("SELECT count(1), ifnull(sum(length(data)), 0) FROM " + chunks, Arrays.copyOf(key, 3));
+                        cursor.moveToNext();
+                        if (cursor.getLong(0) > 0) {
+                            total = cursor.getLong(1);
+                            sql = "SELECT data FROM " + chunks + " AND seq = ?";
+                        }
+                        cursor.close();
+                        cursor = null;
                     }
-                });
+
+                    File dir = dest.getParentFile();
+                    if ((dir != null) && (! dir.exists()))
+                        dir.mkdirs();
+                    os = new BufferedOutputStream(new FileOutputStream(tmp), BLOB_CHUNK_SIZE);
+                    long done = 0;
+                    long seq = 0;
+                    while (done < total) {
+                        if (sql != null) {
+                            key[3] = String.valueOf(seq++);
+                            cursor = db.rawQuery(sql, key);
+                        } else
+                            cursor = db.rawQuery("SELECT substr(CAST(" + quoteName(column) + " AS BLOB), ?, " + BLOB_CHUNK_SIZE + ")" + from,
+                                                 new String[] {String.valueOf(done + 1), String.valueOf(rowId)});
+                        if (! cursor.moveToNext())
+                            throw new SQLException("Blob of row ID " + rowId + " in " + table + " is incomplete");
+                        byte[] chunk = cursor.getBlob(0);
+                        cursor.close();
+                        cursor = null;
+                        if ((chunk == null) || (chunk.length == 0)) break;
+                        os.write(chunk);
+                        done += chunk.length;
+                        progress(tag, done, total);
+                    }
+                    os.close();
+                    os = null;
+                    if (! tmp.renameTo(dest))
+                        throw new IOException("Unable to rename " + tmp.getPath() + " to " + dest.getPath());
+                    task.id = done;
+                } catch (Exception e) {
+                    debugException(e);
+                } finally {
+                    if (cursor != null) cursor.close();
+                    try {
+                        if (os != null) os.close();
+                    } catch (IOException e) {}
+                    if (task.id == -1)
+                        tmp.delete();
+                }
             }
         });
+        debug("ReadBlobToFile: " + table + " " + task.id + " bytes");
+        return task.id;
     }
-    
+
     /**
     * Converts a cursor of returned records to a list.
     * @param c: The cursor
@@ -1363,40 +6773,62 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
     private ArrayList cursorToList(Cursor c) {
         String[] columnNames = c.getColumnNames();
         int columnCount = c.getColumnCount();
-        boolean singleColumn = columnCount == 1;
         ArrayList rows = new ArrayList();
-        ArrayList row;
-        ArrayList column;
         
         while (c.moveToNext()) {
-            if (singleColumn) {
-                if (returnColumnNames) {
-                    column = new ArrayList();
-                    column.add(columnNames[0]);
-                    column.add(columnValue(c, 0));
-                    rows.add(column);
-                } else {
-                    rows.add(columnValue(c, 0));
-                }
-            } else {
-                row = new ArrayList();
-                for (int i = 0; i < columnCount; i++) {
-                    if (returnColumnNames) {
-                        column = new ArrayList();
-                        column.add(columnNames[i]);
-                        column.add(columnValue(c, i));
-                        row.add(column);
-                    } else {
-                        row.add(columnValue(c, i));
-                    }
-                }
-                rows.add(row);
-            }
+            Object[] values = new Object[columnCount];
+            for (int i = 0; i < columnCount; i++)
+                values[i] = columnValue(c, i);
+            rows.add(formatRow(columnNames, values));
         }
         c.close();
         return rows;
     }
     
+    /**
+    * Formats the values of a result row the way the Select methods return them.
+    * @param columnNames: The names of the columns
+    * @param values: The column values
+    * @return The value itself for single column results, or a list of values, depending on ReturnColumnNames
+    */
+    private Object formatRow(String[] columnNames, Object[] values) {
+        ArrayList column;
+        if (values.length == 1) {
+            if (! returnColumnNames) return values[0];
+            column = new ArrayList();
+            column.add(columnNames[0]);
+            column.add(values[0]);
+            return column;
+        }
+        ArrayList row = new ArrayList();
+        for (int i = 0; i < values.length; i++) {
+            if (returnColumnNames) {
+                column = new ArrayList();
+                column.add(columnNames[i]);
+                column.add(values[i]);
+                row.add(column);
+            } else {
+                row.add(values[i]);
+            }
+        }
+        return row;
+    }
+    
+    /**
+    * Runs a query and returns the first column of the first row as a string.
+    * Must run on the database thread.
+    * @return the value, or null if the query returned no rows
+    */
+    private String queryString(final String sql, final String[] args) {
+        Cursor cursor = db.rawQuery(sql, args);
+        try {
+            if (! cursor.moveToNext()) return null;
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+    
     /**
     * Gets a column value from a cursor.
     * @param c: The cursor
@@ -1472,6 +6904,307 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
         return dirPath.getPath() + "/" + fileName;
     }
     
+    /**
+    * Copies the specified file to a destination file.
+    * Uncompressed assets and regular files are copied channel to channel, compressed assets through a stream.
+    * @param tag The progress tag, or null for no progress events
+    * @param fileName The path to the file, as accepted by openInputStream.
+    * @param dest The destination file
+    */
+    private void copyFromInput(final String tag, final String fileName, final File dest) throws IOException {
+        if (fileName.startsWith("//") && (! isRepl)) {
+            AssetFileDescriptor afd = null;
+            try {
+                afd = context.getAssets().openFd(fileName.substring(2));
+            } catch (FileNotFoundException e) {
+                // compressed assets can't be opened as file descriptors
+            }
+            if (afd != null) {
+                FileInputStream is = afd.createInputStream();
+                try {
+                    copyToFile(tag, is.getChannel(), afd.getStartOffset(), afd.getLength(), dest);
+                } finally {
+                    is.close();
+                    afd.close();
+                }
+                return;
+            }
+            InputStream is = openInputStream(fileName);
+            try {
+                copyToFile(tag, Channels.newChannel(is), 0, -1, dest);
+            } finally {
+                is.close();
+            }
+            return;
+        }
+        FileInputStream is = (FileInputStream)openInputStream(fileName);
+        try {
+            copyToFile(tag, is.getChannel(), 0, is.getChannel().size(), dest);
+        } finally {
+            is.close();
+        }
+    }
+    
+    /**
+    * Copies bytes from a channel to a destination file.
+    * The bytes are written to a temporary file next to the destination, synced to disk, and then renamed over
+    * the destination, so a crash never leaves a partially written destination behind.
+    * @param tag The progress tag, or null for no progress events
+    * @param in The source channel
+    * @param position The position in the source to start copying from, only used for file channels
+    * @param size The number of bytes to copy, or -1 to copy until the end of the source
+    * @param dest The destination file
+    */
+    private void copyToFile(final String tag, final ReadableByteChannel in, final long position, final long size, final File dest) throws IOException {
+        File dir = dest.getParentFile();
+        if ((dir != null) && (! dir.exists()))
+            dir.mkdirs();
+        File tmp = new File(dest.getPath() + ".tmp");
+        FileOutputStream os = new FileOutputStream(tmp);
+        boolean done = false;
+        try {
+            FileChannel out = os.getChannel();
+            long copied = 0;
+            long n;
+            if ((in instanceof FileChannel) && (size >= 0)) {
+                FileChannel fin = (FileChannel)in;
+                while (copied < size) {
+                    n = fin.transferTo(position + copied, Math.min(COPY_CHUNK_SIZE, size - copied), out);
+                    if (n <= 0)
+                        throw new IOException("Unexpected end of file after " + copied + " bytes");
+                    copied += n;
+                    progress(tag, copied, size);
+                }
+            } else {
+                long progressed = 0;
+                while ((n = out.transferFrom(in, copied, STREAM_BUFFER_SIZE)) > 0) {
+                    copied += n;
+                    if (copied - progressed >= COPY_CHUNK_SIZE) {
+                        progress(tag, copied, size);
+                        progressed = copied;
+                    }
+                }
+                progress(tag, copied, size);
+            }
+            out.force(true);
+            done = true;
+        } finally {
+            os.close();
+            if (! done) tmp.delete();
+        }
+        if (! tmp.renameTo(dest)) {
+            tmp.delete();
+            throw new IOException("Unable to rename " + tmp.getPath() + " to " + dest.getPath());
+        }
+    }
+    
+    /**
+    * Gzip compresses a stream into a destination file.
+    * Like copyToFile, the output goes to a synced temporary file that is renamed over the destination.
+    * @param tag The progress tag, or null for no progress events
+    * @param in The source stream
+    * @param size The number of bytes in the source, for progress events, or -1 if it isn't known
+    * @param dest The destination file
+    */
+    private void compressToFile(final String tag, final InputStream in, final long size, final File dest) throws IOException {
+        File dir = dest.getParentFile();
+        if ((dir != null) && (! dir.exists()))
+            dir.mkdirs();
+        File tmp = new File(dest.getPath() + ".tmp");
+        FileOutputStream os = new FileOutputStream(tmp);
+        boolean done = false;
+        try {
+            GZIPOutputStream gz = new GZIPOutputStream(os, STREAM_BUFFER_SIZE);
+            byte[] buf = new byte[STREAM_BUFFER_SIZE];
+            long copied = 0;
+            long progressed = 0;
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                gz.write(buf, 0, len);
+                copied += len;
+                if (copied - progressed >= COPY_CHUNK_SIZE) {
+                    progress(tag, copied, size);
+                    progressed = copied;
+                }
+            }
+            gz.finish();
+            gz.flush();
+            progress(tag, copied, size);
+            os.getFD().sync();
+            done = true;
+        } finally {
+            os.close();
+            if (! done) tmp.delete();
+        }
+        if (! tmp.renameTo(dest)) {
+            tmp.delete();
+            throw new IOException("Unable to rename " + tmp.getPath() + " to " + dest.getPath());
+        }
+    }
+    
+    /**
+    * Returns the length of the specified file, or -1 if it can't be determined (assets, for example).
+    * @param fileName The path to the file, as accepted by openInputStream.
+    */
+    private long inputLength(final String fileName) {
+        if (fileName.startsWith("//")) {
+            if (isRepl)
+                return new File(Environment.getExternalStorageDirectory().getPath() + "/AppInventor/assets/" + fileName).length();
+            return -1;
+        }
+        File file = new File(resolveFileName(fileName));
+        return file.exists() ? file.length() : -1;
+    }
+    
+    /**
+    * Reads from a stream until the buffer is full or the end of the stream is reached.
+    * @return the number of bytes read, 0 at the end of the stream
+    */
+    private static int readFully(InputStream is, byte[] buf) throws IOException {
+        int len = 0;
+        int n;
+        while ((len < buf.length) && ((n = is.read(buf, len, buf.length - len)) > 0))
+            len += n;
+        return len;
+    }
+    
+    /**
+    * Quotes a table or column name for use in a SQL statement.
+    */
+    private static String quoteName(final String name) {
+        return "\"" + name.replace("\"", "\"\"") + "\"";
+    }
+    
+    /**
+    * Returns the statement type and unquoted target table of an INSERT, REPLACE, UPDATE or DELETE statement.
+    * @return a two element array of the lower case statement type and the table, or null if the statement isn't a recognized write
+    */
+    private static String[] writeTarget(final String sql) {
+        Matcher m = WRITE_PATTERN.matcher(sql);
+        if (! m.lookingAt()) return null;
+        String table = m.group(2);
+        if (table.toLowerCase().startsWith("main."))
+            table = table.substring(5);
+        char first = table.charAt(0);
+        if (first == '"')
+            table = table.substring(1, table.length() - 1).replace("\"\"", "\"");
+        else if ((first == '[') || (first == '`'))
+            table = table.substring(1, table.length() - 1);
+        return new String[] {m.group(1).toLowerCase(), table};
+    }
+    
+    /**
+    * Records rows written to a table.
+    * Must run on the database thread.
+    */
+    private void noteWrite(final String table, final String op, final long rows) {
+        if (rows <= 0) return;
+        Long writes = tableWrites.get(table);
+        tableWrites.put(table, (writes == null) ? rows : writes + rows);
+        if (observedTables.containsKey(table.toLowerCase()) || isLiveTable(table)) {
+            String key = table.toLowerCase() + "\u0000" + op;
+            Long changes = pendingChanges.get(key);
+            pendingChanges.put(key, (changes == null) ? rows : changes + rows);
+        }
+    }
+    
+    /**
+    * Notes that a transaction ended without being committed.
+    * Changes recorded in a nested transaction are kept until the outermost transaction ends, since Android rolls
+    * back the whole transaction when any nested transaction fails.
+    * Must run on the database thread.
+    */
+    private void noteRollback() {
+        if (db.inTransaction())
+            changesRolledBack = true;
+        else
+            pendingChanges.clear();
+    }
+    
+    /**
+    * Fires TableChanged events for the changes recorded since the last commit, once no transaction is open.
+    * Called by every database task when it finishes.
+    * Must run on the database thread.
+    */
+    private void publishChanges() {
+        if ((db == null) || db.inTransaction()) return;
+        if (changesRolledBack) {
+            changesRolledBack = false;
+            pendingChanges.clear();
+            return;
+        }
+        if (pendingChanges.isEmpty()) return;
+        HashSet<String> changed = new HashSet<String>();
+        for (String key : pendingChanges.keySet()) {
+            final String[] parts = key.split("\u0000");
+            final long rows = pendingChanges.get(key);
+            changed.add(parts[0]);
+            final String table = observedTables.get(parts[0]);
+            if (table == null) continue;
+            form.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    TableChanged(table, parts[1], rows);
+                }
+            });
+        }
+        pendingChanges.clear();
+        for (LiveQuery query : liveQueries())
+            if (query.dependsOn(changed))
+                query.schedule();
+    }
+    
+    /**
+    * Executes a SQL statement that isn't a query, and records the rows written if it's a recognized write.
+    * Writes run as a compiled statement so the count comes from the connection that ran them; in WAL mode a
+    * separate SELECT changes() can run on another pooled connection and read 0.
+    * Must run on the database thread.
+    */
+    private void executeStatement(final String sql, final String[] args) {
+        String[] target = isDDL(sql) ? null : writeTarget(sql);
+        if (target == null) {
+            if (args == null)
+                db.execSQL(sql);
+            else
+                db.execSQL(sql, args);
+            if (isDDL(sql))
+                invalidateSchema();
+            else if (ROLLBACK_PATTERN.matcher(sql).matches())
+                noteRollback();             // Android ends its transaction for ROLLBACK without calling back
+            return;
+        }
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            statement.bindAllArgsAsStrings(args);
+            noteWrite(target[1], target[0], statement.executeUpdateDelete());
+        } finally {
+            statement.close();
+        }
+    }
+    
+    /**
+    * Quotes a string as a SQL literal, for the few places bind parameters can't be used, like trigger bodies.
+    */
+    private static String quoteLiteral(final String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+    
+    /**
+    * Fires the Progress event on the UI thread.
+    * @param tag The tag of the operation, or null if the operation is synchronous and no events should be fired
+    * @param current The amount of work done so far
+    * @param total The total amount of work, or -1 if it isn't known
+    */
+    private void progress(final String tag, final long current, final long total) {
+        if (tag == null) return;
+        form.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Progress(tag, current, total);
+            }
+        });
+    }
+    
 
 
                 
@@ -1544,6 +7277,13 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
         EventDispatcher.dispatchEvent(this, "AfterInsertFile", tag, rowCount);
     }
     
+    @SimpleEvent(description = "This event fires after an asynchronous SelectToFile call. "
+                             + "The tag specified in the original call and the count of rows written, or -1 if an error occurred, are provided."
+                )
+    public void AfterSelectToFile(String tag, int rowCount) {
+        EventDispatcher.dispatchEvent(this, "AfterSelectToFile", tag, rowCount);
+    }
+    
     @SimpleEvent(description = "This event fires after an asynchronous Replace call. "
                              + "The tag specified in the original call and the row ID of the new or updated row are provided."
                 )
@@ -1565,6 +7305,111 @@ public class SQLite extends AndroidNonvisibleComponent implements Component {
         EventDispatcher.dispatchEvent(this, "AfterDelete", tag, rowCount);
     }
     
+    @SimpleEvent(description = "This event fires after an asynchronous WriteBlobFromFile call. "
+                             + "The tag specified in the original call and the number of bytes written are provided."
+                )
+    public void AfterWriteBlob(String tag, long byteCount) {
+        EventDispatcher.dispatchEvent(this, "AfterWriteBlob", tag, byteCount);
+    }
+    
+    @SimpleEvent(description = "This event fires after an asynchronous ReadBlobToFile call. "
+                             + "The tag specified in the original call and the number of bytes read are provided."
+                )
+    public void AfterReadBlob(String tag, long byteCount) {
+        EventDispatcher.dispatchEvent(this, "AfterReadBlob", tag, byteCount);
+    }
+    
+    @SimpleEvent(description = "This event fires after an asynchronous ImportDatabase call. "
+                             + "The tag specified in the original call and whether or not the import succeeded are provided."
+                )
+    public void AfterImportDatabase(String tag, boolean result) {
+        EventDispatcher.dispatchEvent(this, "AfterImportDatabase", tag, result);
+    }
+    
+    @SimpleEvent(description = "This event fires after an asynchronous ExportDatabase call. "
+                             + "The tag specified in the original call and whether or not the export succeeded are provided."
+                )
+    public void AfterExportDatabase(String tag, boolean result) {
+        EventDispatcher.dispatchEvent(this, "AfterExportDatabase", tag, result);
+    }
+    
+    @SimpleEvent(description = "This event fires after an asynchronous BackupDatabase call. "
+                             + "The tag specified in the original call and whether or not the backup succeeded are provided."
+                )
+    public void AfterBackupDatabase(String tag, boolean result) {
+        EventDispatcher.dispatchEvent(this, "AfterBackupDatabase", tag, result);
+    }
+    
+    @SimpleEvent(description = "This event fires after an asynchronous IncrementalBackup call. "
+                             + "The tag specified in the original call and the number of pages written to the patch file are provided. "
+                             + "The page count is -1 if the backup failed."
+                )
+    public void AfterIncrementalBackup(String tag, long pageCount) {
+        EventDispatcher.dispatchEvent(this, "AfterIncrementalBackup", tag, pageCount);
+    }
+    
+    @SimpleEvent(description = "This event fires after changes to an observed table are committed. "
+                             + "The table, the kind of change (insert, replace, update, or delete), and the number of rows changed are provided. "
+                             + "Changes of the same kind made in one transaction are combined into one event."
+                )
+    public void TableChanged(String table, String operation, long rowCount) {
+        EventDispatcher.dispatchEvent(this, "TableChanged", table, operation, rowCount);
+    }
+    
+    @SimpleEvent(description = "This event fires after an asynchronous CreateSearchIndex call. "
+                             + "The tag specified in the original call and the result of the call are provided."
+                )
+    public void AfterCreateSearchIndex(String tag, boolean result) {
+        EventDispatcher.dispatchEvent(this, "AfterCreateSearchIndex", tag, result);
+    }
+    
+    @SimpleEvent(description = "This event fires after an asynchronous CreateIndexAsync call. "
+                             + "The tag specified in the original call and the result of the call are provided. "
+                             + "The result is false if the build failed or was cancelled."
+                )
+    public void AfterCreateIndex(String tag, boolean result) {
+        EventDispatcher.dispatchEvent(this, "AfterCreateIndex", tag, result);
+    }
+    
+    @SimpleEvent(description = "This event fires when the results of a live query change. "
+                             + "The tag of the live query and lists of the inserted, updated and removed rows are provided. "
+                             + "Rows are formatted like the results of SelectSQL. Removed rows have the values they had before they were removed."
+                )
+    public void LiveQueryChanged(String tag, YailList inserted, YailList updated, YailList removed) {
+        EventDispatcher.dispatchEvent(this, "LiveQueryChanged", tag, inserted, updated, removed);
+    }
+    
+    @SimpleEvent(description = "This event fires when a maintenance run ends. "
+                             + "The list of tables that were analyzed, the number of free pages released, and the milliseconds the run took are provided."
+                )
+    public void AfterMaintenance(YailList analyzedTables, long pagesFreed, long elapsed) {
+        EventDispatcher.dispatchEvent(this, "AfterMaintenance", analyzedTables, pagesFreed, elapsed);
+    }
+    
+    @SimpleEvent(description = "This event fires when rows added with BufferedInsert couldn't be written to their table, "
+                             + "for example because a value broke a constraint or the table was dropped. "
+                             + "The table, the list of rows that weren't written, each a list of values in the order of the buffer's columns, "
+                             + "and the first error message are provided. The other rows in the buffer are still written."
+                )
+    public void WriteBufferFailed(String table, YailList rows, String error) {
+        EventDispatcher.dispatchEvent(this, "WriteBufferFailed", table, rows, error);
+    }
+    
+    @SimpleEvent(description = "This event fires when PurgeExpiredRows, or scheduled maintenance, has purged a table with a purge rule. "
+                             + "The table and the number of rows purged are provided."
+                )
+    public void AfterPurge(String table, long rowsPurged) {
+        EventDispatcher.dispatchEvent(this, "AfterPurge", table, rowsPurged);
+    }
+    
+    @SimpleEvent(description = "This event fires periodically during long running asynchronous operations. "
+                             + "The tag specified in the original call, the amount of work done so far, and the total amount of work are provided. "
+                             + "The total is -1 if it isn't known ahead of time."
+                )
+    public void Progress(String tag, long current, long total) {
+        EventDispatcher.dispatchEvent(this, "Progress", tag, current, total);
+    }
+    
     @SimpleEvent(description = "This event fires when a SQL error occurs. "
                              + "The error message is provided."
                 )